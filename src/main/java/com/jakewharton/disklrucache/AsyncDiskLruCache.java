@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the operations of a {@link DiskLruCache} on an I/O executor, so that
+ * threads which must not block, such as event loops, can use the cache.
+ *
+ * <p>At most {@code maxInFlight} operations are queued or running at a time.
+ * Beyond that, operations fail immediately with a
+ * {@link RejectedExecutionException} rather than waiting for a slot; callers
+ * should back off, for example by pausing reads from their connection, and
+ * can check {@link #inFlight} to decide when to resume.
+ *
+ * <p>The returned futures complete on the executor's threads. Operations that
+ * fail with an {@code IOException} complete exceptionally with it as the
+ * cause.
+ */
+public final class AsyncDiskLruCache {
+    private final DiskLruCache cache;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final Semaphore permits;
+
+    /**
+     * @param cache the cache to run operations on
+     * @param executor runs the operations; it should allow blocking I/O
+     * @param maxInFlight the maximum number of operations queued or running
+     *     at a time. Must be positive.
+     */
+    public AsyncDiskLruCache(DiskLruCache cache, Executor executor, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight <= 0");
+        }
+        this.cache = cache;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Returns an executor that runs each operation on a new virtual thread, so
+     * that many concurrent operations don't each need a platform thread. Shut
+     * it down when done with it.
+     *
+     * @throws UnsupportedOperationException if the runtime does not support
+     *     virtual threads, which were added in Java 21.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        return VirtualThreads.newThreadPerTaskExecutor();
+    }
+
+    /** Returns the cache operations are run on. */
+    public DiskLruCache getCache() {
+        return cache;
+    }
+
+    /** Returns the number of operations currently queued or running. */
+    public int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    /**
+     * Returns a future for a snapshot of the entry named {@code key}, which
+     * completes with null if there is no readable entry. The caller must close
+     * the snapshot.
+     */
+    public CompletableFuture<DiskLruCache.Snapshot> getAsync(final String key) {
+        return submit(new Callable<DiskLruCache.Snapshot>() {
+            public DiskLruCache.Snapshot call() throws IOException {
+                return cache.get(key);
+            }
+        });
+    }
+
+    /**
+     * Returns a future that completes with true once {@code values} have been
+     * committed as the values of the entry named {@code key}, or with false
+     * if another edit of that entry was in progress. There must be one value
+     * per value index of the cache.
+     */
+    public CompletableFuture<Boolean> putAsync(final String key, final String... values) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() throws IOException {
+                DiskLruCache.Editor editor = cache.edit(key);
+                if (editor == null) {
+                    return false;
+                }
+                try {
+                    for (int i = 0; i < values.length; i++) {
+                        editor.set(i, values[i]);
+                    }
+                    editor.commit();
+                } finally {
+                    editor.abortUnlessCommitted();
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Returns a future that completes with true if the entry named
+     * {@code key} was removed.
+     */
+    public CompletableFuture<Boolean> removeAsync(final String key) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() throws IOException {
+                return cache.remove(key);
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(final Callable<T> operation) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        if (!permits.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException(
+                    "too many operations in flight: " + maxInFlight));
+            return future;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    T result;
+                    try {
+                        result = operation.call();
+                    } catch (Throwable t) {
+                        permits.release();
+                        future.completeExceptionally(t);
+                        return;
+                    }
+                    // Release first, so dependent actions can start operations.
+                    permits.release();
+                    future.complete(result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
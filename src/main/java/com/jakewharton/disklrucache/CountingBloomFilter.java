@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+/**
+ * A counting Bloom filter of hashed keys. It never reports a present key as
+ * missing, and while it holds no more keys than its capacity, it reports
+ * about 1% of missing keys as present. Each key increments seven four-bit
+ * counters, picked by double hashing two words of the key's hash that
+ * neither pick the segment nor the off-heap index slot.
+ *
+ * <p>Counters stick at their maximum, since decrementing one that
+ * overflowed could drop another key; that only makes the filter a little
+ * less selective.
+ *
+ * <p>Keys are added and removed by one thread at a time, holding the owning
+ * segment's lock. Lookups don't lock. A lookup racing the addition of a key
+ * may miss it, as if it had run just before.
+ */
+final class CountingBloomFilter {
+    private static final int HASH_COUNT = 7;
+    private static final int COUNTERS_PER_KEY = 10;
+    private static final int MAX_COUNT = 15;
+
+    private final int capacity;
+    private final int counterCount;
+    /** Two counters per byte. */
+    private final byte[] counters;
+    private int size;
+
+    CountingBloomFilter(int capacity) {
+        this.capacity = capacity;
+        this.counterCount = (int) Math.min(Integer.MAX_VALUE - 1,
+                Math.max(64, (long) capacity * COUNTERS_PER_KEY));
+        this.counters = new byte[(counterCount + 1) / 2];
+    }
+
+    /** Returns the number of keys the filter was sized for. */
+    int capacity() {
+        return capacity;
+    }
+
+    /** Returns the number of keys added and not removed. */
+    int size() {
+        return size;
+    }
+
+    /** Returns false if {@code key} is certainly not in the filter. */
+    boolean mightContain(HashedKey key) {
+        long hash = key.secondLong();
+        long step = key.thirdLong() | 1;
+        for (int i = 0; i < HASH_COUNT; i++, hash += step) {
+            if (counter(index(hash)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void add(HashedKey key) {
+        long hash = key.secondLong();
+        long step = key.thirdLong() | 1;
+        for (int i = 0; i < HASH_COUNT; i++, hash += step) {
+            int index = index(hash);
+            int count = counter(index);
+            if (count < MAX_COUNT) {
+                setCounter(index, count + 1);
+            }
+        }
+        size++;
+    }
+
+    /** Removes {@code key}, which must have been added. */
+    void remove(HashedKey key) {
+        long hash = key.secondLong();
+        long step = key.thirdLong() | 1;
+        for (int i = 0; i < HASH_COUNT; i++, hash += step) {
+            int index = index(hash);
+            int count = counter(index);
+            if (count > 0 && count < MAX_COUNT) {
+                setCounter(index, count - 1);
+            }
+        }
+        size--;
+    }
+
+    private int index(long hash) {
+        return (int) ((hash & Long.MAX_VALUE) % counterCount);
+    }
+
+    private int counter(int index) {
+        return (counters[index >>> 1] >>> ((index & 1) << 2)) & 0xf;
+    }
+
+    private void setCounter(int index, int count) {
+        int shift = (index & 1) << 2;
+        int b = counters[index >>> 1] & ~(0xf << shift);
+        counters[index >>> 1] = (byte) (b | (count << shift));
+    }
+}
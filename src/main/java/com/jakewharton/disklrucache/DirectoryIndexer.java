@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the values stored in a cache's subdirectories by listing them
+ * directly. This is the slow path of opening a cache, taken when there is no
+ * usable index, so the subdirectories are scanned concurrently on a fork-join
+ * pool and each one is handed to a {@link Sink} as soon as it is done.
+ *
+ * <p>Only clean files in the subdirectory matching their key's prefix are
+ * reported, that is files named {@code <hashed key>.<value index>}, or just
+ * {@code <hashed key>} if the cache packs the values of an entry into one
+ * file. A packed file is reported as each of its values. Dirty files and
+ * foreign files are skipped, as are files that cannot be read.
+ */
+final class DirectoryIndexer {
+    /** Receives the values found in each subdirectory. Must be thread safe. */
+    interface Sink {
+        void accept(List<IndexedValue> values);
+    }
+
+    /** A clean file found by the indexer. */
+    static final class IndexedValue {
+        final HashedKey key;
+        final int index;
+        final long length;
+        /** The later of the file's modification and access times. */
+        final long lastUsed;
+
+        IndexedValue(HashedKey key, int index, long length, long lastUsed) {
+            this.key = key;
+            this.index = index;
+            this.length = length;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private DirectoryIndexer() {
+    }
+
+    /**
+     * Indexes {@code dirs}, scanning up to {@code parallelism} of them at a
+     * time, and returns once all of them have been passed to {@code sink}.
+     */
+    @SuppressWarnings("serial") // The tasks are never serialized.
+    static void index(List<File> dirs, final int valueCount, final boolean packed,
+            int parallelism, final Sink sink) {
+        if (dirs.size() <= 1 || parallelism <= 1) {
+            for (File dir : dirs) {
+                sink.accept(indexDir(dir, valueCount, packed));
+            }
+            return;
+        }
+
+        final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(dirs.size());
+        for (final File dir : dirs) {
+            tasks.add(new RecursiveAction() {
+                @Override protected void compute() {
+                    sink.accept(indexDir(dir, valueCount, packed));
+                }
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, dirs.size()));
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Indexes {@code dirs}, each as a separate task on {@code executor}, and
+     * returns once all of them have been passed to {@code sink}. This suits
+     * executors that start a virtual thread per task, which block cheaply on
+     * the filesystem.
+     */
+    static void index(List<File> dirs, final int valueCount, final boolean packed,
+            ExecutorService executor, final Sink sink) throws InterruptedIOException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(dirs.size());
+        for (final File dir : dirs) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    sink.accept(indexDir(dir, valueCount, packed));
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new AssertionError(cause);
+        }
+    }
+
+    /** Returns the clean files in {@code dir}. */
+    static List<IndexedValue> indexDir(File dir, int valueCount, boolean packed) {
+        List<IndexedValue> values = new ArrayList<IndexedValue>();
+        String prefix = dir.getName();
+        DirectoryStream<Path> stream;
+        try {
+            stream = Files.newDirectoryStream(dir.toPath());
+        } catch (IOException e) {
+            return values; // The directory is gone or unreadable.
+        }
+        try {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                int index = packed
+                        ? (isPackedFile(name, prefix) ? 0 : -1)
+                        : valueIndex(name, prefix, valueCount);
+                if (index == -1) {
+                    continue;
+                }
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue; // The file was deleted while we were listing.
+                }
+                if (!attributes.isRegularFile()) {
+                    continue;
+                }
+                // Filesystems mounted without access times report the
+                // modification or creation time instead.
+                long lastUsed = Math.max(attributes.lastModifiedTime().toMillis(),
+                        attributes.lastAccessTime().toMillis());
+                if (!packed) {
+                    values.add(new IndexedValue(HashedKey.parse(name, 0),
+                            index, attributes.size(), lastUsed));
+                    continue;
+                }
+                long[] lengths;
+                try {
+                    lengths = PackedValues.readLengths(path.toFile(), valueCount);
+                } catch (IOException e) {
+                    continue; // Deleted while we were listing, or corrupt.
+                }
+                HashedKey key = HashedKey.parse(name, 0);
+                for (int i = 0; i < valueCount; i++) {
+                    values.add(new IndexedValue(key, i, lengths[i], lastUsed));
+                }
+            }
+        } finally {
+            Util.closeQuietly(stream);
+        }
+        return values;
+    }
+
+    /**
+     * Returns true if {@code name} is the packed file of an entry in the
+     * subdirectory {@code prefix}.
+     */
+    static boolean isPackedFile(String name, String prefix) {
+        return name.length() == DiskLruCache.HASH_LENGTH * 2
+                && prefix.length() == DiskLruCache.SUBDIR_PREFIX_LENGTH
+                && name.startsWith(prefix)
+                && HashedKey.parse(name, 0) != null;
+    }
+
+    /**
+     * Returns the value index of the clean file {@code name} in the
+     * subdirectory {@code prefix}, or -1 if it isn't one. This runs for every
+     * file in the cache, so it avoids regular expressions and allocation.
+     */
+    static int valueIndex(String name, String prefix, int valueCount) {
+        int keyLength = DiskLruCache.HASH_LENGTH * 2;
+        if (name.length() < keyLength + 2
+                || name.charAt(keyLength) != '.'
+                || !name.startsWith(prefix)
+                || prefix.length() != DiskLruCache.SUBDIR_PREFIX_LENGTH) {
+            return -1;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return -1;
+            }
+        }
+        if (name.charAt(keyLength + 1) == '0' && name.length() > keyLength + 2) {
+            return -1; // Leading zero.
+        }
+        int index = 0;
+        for (int i = keyLength + 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            index = index * 10 + (c - '0');
+            if (index >= valueCount) {
+                return -1;
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes the dirty files left behind by edits that never completed, usually
+ * because the process died. The journal only knows about the edits it managed
+ * to record, so the subdirectories are walked instead.
+ *
+ * <p>This runs once, on a low priority thread, after the cache is opened. Only
+ * files last modified before then are deleted, and only if their entry isn't
+ * being edited. Files are checked against the cache in batches so the cache's
+ * lock is held briefly, and each is deleted holding only its segment's lock.
+ */
+final class DirtyFileSweeper implements Runnable {
+    static final String DIRTY_SUFFIX = ".tmp";
+    static final int BATCH_SIZE = 256;
+
+    private final DiskLruCache cache;
+    private final File directory;
+    private final long cutoffMillis;
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    DirtyFileSweeper(DiskLruCache cache, File directory, long cutoffMillis) {
+        this.cache = cache;
+        this.directory = directory;
+        this.cutoffMillis = cutoffMillis;
+    }
+
+    /** Returns the number of bytes deleted so far. */
+    long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    public void run() {
+        File[] dirs = directory.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        List<DirtyFile> batch = new ArrayList<DirtyFile>(BATCH_SIZE);
+        for (File dir : dirs) {
+            if (!dir.isDirectory()) {
+                continue;
+            }
+            DirectoryStream<Path> stream;
+            try {
+                stream = Files.newDirectoryStream(dir.toPath());
+            } catch (IOException e) {
+                continue; // The directory is gone or unreadable.
+            }
+            try {
+                for (Path path : stream) {
+                    DirtyFile dirtyFile = dirtyFile(path);
+                    if (dirtyFile == null) {
+                        continue;
+                    }
+                    batch.add(dirtyFile);
+                    if (batch.size() == BATCH_SIZE && !sweep(batch)) {
+                        return;
+                    }
+                }
+            } finally {
+                Util.closeQuietly(stream);
+            }
+        }
+        sweep(batch);
+    }
+
+    /**
+     * Returns the stale dirty file at {@code path}, or null if it is not one.
+     */
+    private DirtyFile dirtyFile(Path path) {
+        String name = path.getFileName().toString();
+        if (!name.endsWith(DIRTY_SUFFIX)) {
+            return null;
+        }
+        HashedKey key = HashedKey.parse(name, 0);
+        if (key == null) {
+            return null;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null; // The file was deleted while we were listing.
+        }
+        if (!attributes.isRegularFile()
+                || attributes.lastModifiedTime().toMillis() >= cutoffMillis) {
+            return null;
+        }
+        return new DirtyFile(key, path.toFile(), attributes.size());
+    }
+
+    /**
+     * Deletes the files in {@code batch} whose entries aren't being edited,
+     * then clears it. Returns false if the cache has been closed.
+     */
+    private boolean sweep(List<DirtyFile> batch) {
+        List<HashedKey> keys = new ArrayList<HashedKey>(batch.size());
+        for (DirtyFile dirtyFile : batch) {
+            keys.add(dirtyFile.key);
+        }
+        Set<HashedKey> editing = cache.keysBeingEdited(keys);
+        if (editing == null) {
+            return false;
+        }
+        for (DirtyFile dirtyFile : batch) {
+            // An edit may start after the check, so the cache checks again
+            // under the entry's segment lock before deleting the file.
+            if (!editing.contains(dirtyFile.key)
+                    && cache.deleteLeftoverFile(dirtyFile.key, dirtyFile.file, cutoffMillis)) {
+                reclaimedBytes.addAndGet(dirtyFile.length);
+            }
+        }
+        batch.clear();
+        return true;
+    }
+
+    private static final class DirtyFile {
+        private final HashedKey key;
+        private final File file;
+        private final long length;
+
+        private DirtyFile(HashedKey key, File file, long length) {
+            this.key = key;
+            this.file = file;
+            this.length = length;
+        }
+    }
+}
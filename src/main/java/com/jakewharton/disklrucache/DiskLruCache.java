@@ -16,28 +16,52 @@
 
 package com.jakewharton.disklrucache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.FileUtils;
+import com.jakewharton.disklrucache.DirectoryIndexer.IndexedValue;
 
 /**
  * A cache that uses a bounded amount of space on a filesystem. Each cache
@@ -85,38 +109,212 @@ import org.apache.commons.io.FileUtils;
 public final class DiskLruCache implements Closeable {
     static final int SUBDIR_PREFIX_LENGTH = 2;
     static final long ANY_SEQUENCE_NUMBER = -1;
+    static final String INDEX_FILE = "index";
+    static final String INDEX_FILE_TMP = "index.tmp";
+    /** Holds the name of the directory's key hasher. */
+    static final String KEY_HASHER_FILE = "hasher";
+    /** Holds the name of the directory's value layout. */
+    static final String LAYOUT_FILE = "layout";
+    static final String LAYOUT_FILES = "files";
+    static final String LAYOUT_PACKED = "packed";
+    static final String LAYOUT_LOG = "log";
+    static final int INDEX_MAGIC = 0x444c5249; // "DLRI"
+    static final int INDEX_VERSION = 2;
+    /** The largest buffer compaction stages index records in. */
+    static final int INDEX_CHUNK_SIZE = 1024 * 1024;
+    /** Length in bytes of a hashed key. */
+    static final int HASH_LENGTH = 32;
+    static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    /** Recorded in the index for subdirectories that must be indexed on open. */
+    static final long UNINDEXED = Long.MIN_VALUE;
+    /** The number of keys each segment's miss filter is first sized for. */
+    static final int MISS_FILTER_INITIAL_CAPACITY = 1024;
+
+    /*
+     * The index is a checkpoint of the cache that lets open() skip walking the
+     * directory tree. It is a binary file with a header, the modification time
+     * of each subdirectory and one record per readable entry, in LRU order:
+     *
+     *     int      magic
+     *     int      version
+     *     int      value count
+     *     long     next sequence number
+     *     long     generation
+     *     int      subdirectory count
+     *       utf    subdirectory name
+     *       long   subdirectory last modified time
+     *     int      entry count
+     *       byte[] hashed key (32 bytes)
+     *       long   sequence number
+     *       long[] value lengths (one per value)
+     *       long[] value locations (one per value, with a value log)
+     *     long     CRC32 of everything above
+     *
+     * Operations after the checkpoint are appended to journals (see Journal)
+     * with the same or a later generation. When the journals have accumulated
+     * enough redundant records they are compacted by writing a new index.
+     *
+     * A subdirectory modified after both the index and the journals were last
+     * written was changed behind the cache's back, either manually or by edits
+     * whose journal records were lost in a crash. Its entries are re-indexed
+     * from the filesystem instead. A missing or corrupt index falls back to
+     * indexing the whole directory. With lazy indexing, subdirectories that
+     * had not been indexed yet are recorded as UNINDEXED.
+     */
 
     private final File directory;
-    private long maxSize;
+    private final File indexFile;
+    private final File indexFileTmp;
+    private volatile long maxSize;
     private final int valueCount;
-    private long size = 0;
-    private final LinkedHashMap<String, Entry> lruEntries =
-            new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private final boolean lazyIndexing;
+    private final boolean virtualThreads;
+    private final boolean offHeapIndex;
+    private final boolean packedValues;
+    /** Values up to this size go to the value log; zero if there is none. */
+    private final int logValueSize;
+    private final long logFileSize;
+    private final long mapThreshold;
+    private final boolean lazySnapshots;
+    /** Entries up to this size are held in memory; zero if there is no memory cache. */
+    private final long memoryEntrySize;
+    /** Holds the small values, if logValueSize is positive. Set by open(). */
+    private ValueLog valueLog;
+    private final KeyHasher keyHasher;
+    private volatile Journal journal;
+    private long nextGeneration;
+    private volatile boolean closed;
+
+    /**
+     * The entries, split by the prefix of their hashed key. Each segment is
+     * locked on its own, so operations on different segments do not contend.
+     * Compaction and subdirectory indexing touch one segment at a time, and
+     * the cache's own monitor is never held while acquiring a segment's.
+     */
+    private final Segment[] segments;
+
+    /**
+     * Names of the subdirectories whose entries have not been loaded yet, and
+     * of those being loaded right now. Both are only used by lazy indexing.
+     */
+    private final Set<String> unindexedDirs = new HashSet<String>();
+    private final Set<String> indexingDirs = new HashSet<String>();
+    private volatile boolean fullyIndexed = true;
+
+    /**
+     * The modification time each subdirectory had after the cache last
+     * created, renamed or deleted files in it, and the subdirectories changed
+     * behind its back since it was opened, for example by files added by
+     * hand. Only times the cache produced itself are recorded in the index,
+     * so that such changes are re-indexed on the next open. Both are updated
+     * while holding the monitor of the subdirectory's segment.
+     */
+    private final ConcurrentHashMap<String, Long> knownDirModified =
+            new ConcurrentHashMap<String, Long>();
+    private final Set<String> changedDirs =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Entries kept while their subdirectory is re-indexed because they have
+     * values in the value log, until indexing merges their other values in.
+     */
+    private final Set<HashedKey> keptLoggedKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<HashedKey, Boolean>());
+
+    /** The loads in progress for getOrLoad, by key. */
+    private final ConcurrentHashMap<HashedKey, Load> loads =
+            new ConcurrentHashMap<HashedKey, Load>();
+
+    /** Deletes dirty files left behind by a previous process. */
+    private DirtyFileSweeper sweeper;
+    Thread sweeperThread;
 
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
      * its sequence number is not equal to its entry's sequence number.
      */
-    private long nextSequenceNumber = 0;
+    private final AtomicLong nextSequenceNumber = new AtomicLong();
+
+    /**
+     * Serializes compactions. When both are needed this lock is acquired
+     * before the segments' monitors.
+     */
+    private final Object indexLock = new Object();
 
     /** This cache uses a single background thread to evict entries. */
-    final ThreadPoolExecutor executorService =
-            new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
-                    new LinkedBlockingQueue<Runnable>());
+    final ThreadPoolExecutor executorService;
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         public Void call() throws Exception {
+            boolean compact = false;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.trimToSize();
+                    compact |= segment.journalRebuildRequired();
+                }
+            }
+            if (compact) {
+                compact();
+            }
+            if (valueLog != null) {
+                compactValueLog();
+            }
+            return null;
+        }
+    };
+
+    /**
+     * Indexes one subdirectory at a time with lazy indexing, so evictions can
+     * run in between.
+     */
+    private final Callable<Void> warmupCallable = new Callable<Void>() {
+        public Void call() throws Exception {
+            String dirName;
             synchronized (DiskLruCache.this) {
-                trimToSize();
+                if (closed || unindexedDirs.isEmpty()) {
+                    return null;
+                }
+                dirName = unindexedDirs.iterator().next();
             }
+            indexDir(dirName);
+            executorService.submit(warmupCallable);
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int valueCount, long maxSize, Options options) {
         this.directory = directory;
+        this.indexFile = new File(directory, INDEX_FILE);
+        this.indexFileTmp = new File(directory, INDEX_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.lazyIndexing = options.lazyIndexing;
+        this.virtualThreads = options.virtualThreads;
+        this.offHeapIndex = options.offHeapIndex;
+        this.packedValues = options.packedValues;
+        this.logValueSize = options.logValueSize;
+        this.logFileSize = options.logFileSize;
+        this.mapThreshold = options.mapThreshold;
+        this.lazySnapshots = options.lazySnapshots;
+        this.memoryEntrySize = options.memoryCacheSize > 0 ? options.memoryEntrySize : 0;
+        this.keyHasher = options.keyHasher;
+        this.executorService = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        if (virtualThreads) {
+            executorService.setThreadFactory(VirtualThreads.factory("DiskLruCache-cleanup-"));
+        }
+        this.segments = new Segment[options.segmentCount];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = offHeapIndex ? new OffHeapSegment() : new HeapSegment();
+            if (options.missFilter) {
+                segments[i].keyFilter = new CountingBloomFilter(MISS_FILTER_INITIAL_CAPACITY);
+            }
+            if (options.memoryCacheSize > 0) {
+                segments[i].memoryCache = new MemoryCache(
+                        options.memoryCacheSize / segments.length, options.memoryCacheOffHeap);
+            }
+        }
+        splitMaxSize(maxSize);
     }
 
     /**
@@ -130,20 +328,227 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, valueCount, maxSize, new Options());
+    }
+
+    /**
+     * Opens the cache in {@code directory} with {@code options}, creating a
+     * cache if none exists there.
+     *
+     * @param directory a writable directory
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param options how the cache should behave
+     * @throws IOException if reading or writing the cache directory fails, or
+     *     if the directory was created with another {@link KeyHasher} or value
+     *     layout
+     */
+    public static DiskLruCache open(File directory, int valueCount, long maxSize,
+            Options options) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         if (valueCount <= 0) {
             throw new IllegalArgumentException("valueCount <= 0");
         }
+        if (maxSize < options.segmentCount) {
+            throw new IllegalArgumentException("maxSize < segmentCount");
+        }
+        if (options.packedValues && options.logValueSize > 0) {
+            throw new IllegalArgumentException("packed values cannot be used with a value log");
+        }
 
         // Read all files in cache
-        DiskLruCache cache = new DiskLruCache(directory, valueCount, maxSize);
+        long openMillis = System.currentTimeMillis();
+        DiskLruCache cache = new DiskLruCache(directory, valueCount, maxSize, options);
         directory.mkdirs();
-        cache.indexFiles();
+        cache.checkFormat();
+        if (cache.logValueSize > 0) {
+            cache.valueLog = ValueLog.open(directory, cache.logFileSize);
+        }
+        cache.readState();
+        cache.startSweeper(openMillis);
         return cache;
     }
 
+    /**
+     * Throws if the cache directory was created with another key hasher or
+     * value layout, and records this cache's if the directory is new.
+     * Directories that predate the records, possibly populated by hand, use
+     * SHA-256 and a file per value.
+     */
+    private void checkFormat() throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("not a readable directory: " + directory);
+        }
+        boolean created = names.length == 0;
+        checkRecorded(KEY_HASHER_FILE, "key hasher", keyHasher.name(),
+                created ? null : KeyHasher.SHA_256.name());
+        String layout = packedValues ? LAYOUT_PACKED
+                : logValueSize > 0 ? LAYOUT_LOG
+                : LAYOUT_FILES;
+        checkRecorded(LAYOUT_FILE, "value layout", layout, created ? null : LAYOUT_FILES);
+    }
+
+    /**
+     * Throws if the file {@code name} records something other than
+     * {@code expected}, and records it if the file is missing. A missing
+     * file stands for {@code legacy}, or for anything if that is null.
+     */
+    private void checkRecorded(String name, String what, String expected, String legacy)
+            throws IOException {
+        File file = new File(directory, name);
+        String recorded = file.exists()
+                ? inputStreamToString(new FileInputStream(file)).trim()
+                : legacy;
+        if (recorded != null && !recorded.equals(expected)) {
+            throw new IOException("cache directory " + directory + " uses " + what + " "
+                    + recorded + ", not " + expected);
+        }
+        if (!file.exists()) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), Util.UTF_8);
+            try {
+                writer.write(expected + "\n");
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private void startSweeper(long cutoffMillis) {
+        sweeper = new DirtyFileSweeper(this, directory, cutoffMillis);
+        if (virtualThreads) {
+            sweeperThread = VirtualThreads.factory("DiskLruCache-sweeper-").newThread(sweeper);
+        } else {
+            sweeperThread = new Thread(sweeper, "DiskLruCache-sweeper");
+            sweeperThread.setDaemon(true);
+            sweeperThread.setPriority(Thread.MIN_PRIORITY);
+        }
+        sweeperThread.start();
+    }
+
+    /**
+     * Returns those of {@code hashedKeys} whose entries are being edited, or
+     * null if this cache has been closed.
+     */
+    Set<HashedKey> keysBeingEdited(List<HashedKey> hashedKeys) {
+        if (closed) {
+            return null;
+        }
+        Set<HashedKey> result = new HashSet<HashedKey>();
+        for (HashedKey key : hashedKeys) {
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                if (segment.editing.containsKey(key)) {
+                    result.add(key);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the segment holding {@code hashedKey}. */
+    private Segment segmentFor(HashedKey hashedKey) {
+        return segments[hashedKey.prefix() & (segments.length - 1)];
+    }
+
+    /**
+     * Returns the segment of the entries in the subdirectory {@code name}, or
+     * the first segment if the cache doesn't store entries there.
+     */
+    private Segment segmentForDir(String name) {
+        int high = name.length() == 2 ? Character.digit(name.charAt(0), 16) : -1;
+        int low = name.length() == 2 ? Character.digit(name.charAt(1), 16) : -1;
+        if (high == -1 || low == -1) {
+            return segments[0];
+        }
+        return segments[((high << 4) | low) & (segments.length - 1)];
+    }
+
+    /**
+     * Notes that the cache is about to create, rename or delete files in
+     * {@code dir}. If the subdirectory changed since the cache last did that,
+     * it was changed behind the cache's back. Must hold the monitor of its
+     * segment until {@link #changedDir} is called.
+     */
+    private void changingDir(File dir) {
+        Long known = knownDirModified.get(dir.getName());
+        long modified = dir.lastModified();
+        if (known == null ? modified != 0 : known.longValue() != modified) {
+            changedDirs.add(dir.getName());
+        }
+    }
+
+    /** Records the modification time the cache gave {@code dir} by changing it. */
+    private void changedDir(File dir) {
+        knownDirModified.put(dir.getName(), dir.lastModified());
+    }
+
+    /**
+     * Returns the modification time of {@code dir} to record in the index, or
+     * {@link #UNINDEXED} if it was changed behind the cache's back since the
+     * cache was opened, so the next open re-indexes it.
+     */
+    private long indexedModified(File dir) {
+        String name = dir.getName();
+        synchronized (segmentForDir(name)) {
+            long modified = dir.lastModified();
+            Long known = knownDirModified.get(name);
+            if (known == null || known.longValue() != modified) {
+                changedDirs.add(name);
+            }
+            return changedDirs.contains(name) ? UNINDEXED : modified;
+        }
+    }
+
+    /**
+     * Deletes {@code file}, a dirty file of the entry for {@code key} left
+     * behind by a previous process, unless the entry is being edited or the
+     * file was modified at or after {@code cutoffMillis}. Returns true if it
+     * was deleted.
+     */
+    boolean deleteLeftoverFile(HashedKey key, File file, long cutoffMillis) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            // Editors create their dirty files holding this lock, so an edit
+            // that started after the sweeper's last check is seen here.
+            if (segment.editing.containsKey(key) || file.lastModified() >= cutoffMillis) {
+                return false;
+            }
+            File dir = file.getParentFile();
+            changingDir(dir);
+            try {
+                return file.delete();
+            } finally {
+                changedDir(dir);
+            }
+        }
+    }
+
+    /** Gives each segment an equal share of {@code maxSize}. */
+    private void splitMaxSize(long maxSize) {
+        long share = maxSize / segments.length;
+        long remainder = maxSize % segments.length;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                segments[i].maxSize = share + (i < remainder ? 1 : 0);
+            }
+        }
+    }
+
+    /** Returns true if any segment holds more than its share of the maximum size. */
+    private boolean trimRequired() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                if (segment.size > segment.maxSize) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private static void deleteIfExists(File file) throws IOException {
         if (file.exists() && !file.delete()) {
             throw new IOException();
@@ -155,38 +560,153 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
-        key = DigestUtils.sha256Hex(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
+    public Snapshot get(String key) throws IOException {
+        HashedKey hashedKey = HashedKey.hash(keyHasher, key);
+        ensureIndexed(hashedKey);
+        return getHashed(hashedKey);
+    }
 
-        if (!entry.readable) {
-            return null;
-        }
+    private Snapshot getHashed(HashedKey key) throws IOException {
+        Segment segment = segmentFor(key);
+        return segment.mightContain(key) ? segment.snapshot(key) : null;
+    }
+
+    /**
+     * Returns true if there is a readable entry named {@code key}. This
+     * doesn't open any files or change the LRU order.
+     */
+    public boolean contains(String key) throws IOException {
+        return stat(key, false) != null;
+    }
+
+    /**
+     * Returns the metadata of the entry named {@code key}, or null if there
+     * is no readable entry. This doesn't open any files or change the LRU
+     * order.
+     */
+    public Stat stat(String key) throws IOException {
+        return stat(key, false);
+    }
+
+    /**
+     * Returns the metadata of the entry named {@code key}, or null if there
+     * is no readable entry. The metadata is kept in memory, so no files are
+     * opened; with {@link Options#setLazyIndexing} the key's subdirectory may
+     * have to be indexed first. If {@code touch} is true, the entry is moved
+     * to the head of the LRU queue as if it had been read.
+     */
+    public Stat stat(String key, boolean touch) throws IOException {
+        HashedKey hashedKey = HashedKey.hash(keyHasher, key);
+        ensureIndexed(hashedKey);
+        Segment segment = segmentFor(hashedKey);
+        return segment.mightContain(hashedKey) ? segment.stat(hashedKey, touch) : null;
+    }
 
+    /**
+     * Opens the clean files of {@code entry}, or returns null if any of them
+     * is missing.
+     */
+    private RegionInputStream[] openCleanFiles(Entry entry) {
+        if (packedValues) {
+            try {
+                return PackedValues.open(entry.getPackedFile(), valueCount);
+            } catch (IOException e) {
+                return null; // Missing or corrupt.
+            }
+        }
         // Open all streams eagerly to guarantee that we see a single published
         // snapshot. If we opened streams lazily then the streams could come
         // from different edits.
-        InputStream[] ins = new InputStream[valueCount];
+        RegionInputStream[] ins = new RegionInputStream[valueCount];
+        long[] lengths = entry.publishedLengths;
+        long[] locations = entry.publishedLocations;
         try {
             for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+                if (locations != null && locations[i] != 0) {
+                    ins[i] = valueLog.open(locations[i], lengths[i]);
+                    if (ins[i] == null) {
+                        throw new FileNotFoundException(); // Compacted meanwhile.
+                    }
+                } else {
+                    FileInputStream in = new FileInputStream(entry.getCleanFile(i));
+                    ins[i] = new RegionInputStream(in.getChannel(), 0, lengths[i], in);
+                }
             }
         } catch (FileNotFoundException e) {
-            // A file must have been deleted manually!
+            // A file must have been deleted manually, or the entry was
+            // removed while we were opening it.
+            closeAll(ins);
+            return null;
+        }
+        return ins;
+    }
+
+    /**
+     * Reads the values of {@code ins} into buffers for the memory cache of
+     * {@code segment}, or returns null if there is none, the values are too
+     * large for it or can't be read. Doesn't move or close the streams.
+     */
+    private ByteBuffer[] readIntoMemory(Segment segment, RegionInputStream[] ins,
+            long[] lengths) {
+        if (segment.memoryCache == null) {
+            return null;
+        }
+        long total = 0;
+        for (long length : lengths) {
+            total += length;
+        }
+        if (total > memoryEntrySize) {
+            return null;
+        }
+        ByteBuffer[] values = new ByteBuffer[valueCount];
+        try {
             for (int i = 0; i < valueCount; i++) {
-                if (ins[i] != null) {
-                    Util.closeQuietly(ins[i]);
-                } else {
-                    break;
+                ByteBuffer value = segment.memoryCache.allocate((int) lengths[i]);
+                while (value.hasRemaining()) {
+                    if (ins[i].read(value.position(), value) == -1) {
+                        return null; // The file was truncated.
+                    }
                 }
+                value.flip();
+                values[i] = value;
             }
+        } catch (IOException e) {
             return null;
         }
+        return values;
+    }
+
+    /**
+     * Returns a snapshot of the values of {@code ins}, which were published as
+     * {@code sequenceNumber}. Values small enough for the memory cache of
+     * {@code segment} are read into it, and the files closed.
+     */
+    private Snapshot snapshotOf(Segment segment, HashedKey key, long sequenceNumber,
+            RegionInputStream[] ins, long[] lengths) {
+        ByteBuffer[] values = readIntoMemory(segment, ins, lengths);
+        if (values == null) {
+            return new Snapshot(key, sequenceNumber, ins, lengths);
+        }
+        closeAll(ins);
+        segment.memoryCache.put(key, sequenceNumber, values);
+        return memorySnapshot(key, sequenceNumber, values);
+    }
+
+    /** Returns a snapshot of {@code values}, which are held in memory. */
+    private Snapshot memorySnapshot(HashedKey key, long sequenceNumber, ByteBuffer[] values) {
+        RegionInputStream[] ins = new RegionInputStream[valueCount];
+        long[] lengths = new long[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            ins[i] = new RegionInputStream(values[i]);
+            lengths[i] = values[i].remaining();
+        }
+        return new Snapshot(key, sequenceNumber, ins, lengths);
+    }
 
-        return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
+    private static void closeAll(RegionInputStream[] ins) {
+        for (InputStream in : ins) {
+            Util.closeQuietly(in);
+        }
     }
 
     /**
@@ -194,27 +714,169 @@ public final class DiskLruCache implements Closeable {
      * edit is in progress.
      */
     public Editor edit(String key) throws IOException {
-        return editHashed(DigestUtils.sha256Hex(key), ANY_SEQUENCE_NUMBER);
+        HashedKey hashedKey = HashedKey.hash(keyHasher, key);
+        ensureIndexed(hashedKey);
+        return editHashed(hashedKey, ANY_SEQUENCE_NUMBER);
+    }
+
+    private Editor editHashed(HashedKey key, long expectedSequenceNumber) throws IOException {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.drainReads();
+            Entry entry = segment.get(key);
+            if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
+                    || entry.sequenceNumber != expectedSequenceNumber)) {
+                return null; // Snapshot is stale.
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+                segment.put(entry);
+            } else if (entry.currentEditor != null) {
+                return null; // Another edit is in progress.
+            }
+
+            Editor editor = new Editor(entry);
+            entry.currentEditor = editor;
+            segment.editing.put(key, entry);
+
+            journal.dirty(key);
+            return editor;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, loading it with
+     * {@code loader} first if it is missing. Concurrent calls that miss the
+     * same key share one load: the first caller runs {@code loader} on its
+     * own thread, and the others wait for the edit to commit and then return
+     * a snapshot of the committed entry.
+     *
+     * <p>Returns null if the loaded entry was evicted or removed before it
+     * could be read, or if the entry is being edited by an editor from
+     * {@link #edit}, which this can't wait for.
+     *
+     * @throws IOException if the loader or the edit failed. Waiters throw an
+     *     IOException caused by the failure.
+     */
+    public Snapshot getOrLoad(String key, Loader loader) throws IOException {
+        HashedKey hashedKey = HashedKey.hash(keyHasher, key);
+        ensureIndexed(hashedKey);
+        Snapshot snapshot = getHashed(hashedKey);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        Load load = new Load(valueCount);
+        Load existing = loads.putIfAbsent(hashedKey, load);
+        if (existing != null) {
+            existing.await();
+        } else {
+            load(key, hashedKey, load, loader);
+        }
+        return getHashed(hashedKey);
     }
 
-    private synchronized Editor editHashed(String key, long expectedSequenceNumber)
+    /**
+     * Returns a stream of the value at {@code index} of the entry named
+     * {@code key}, loading the entry with {@code loader} first if it is
+     * missing, or null in the cases {@link #getOrLoad} returns null. The
+     * caller must close the stream.
+     *
+     * <p>As with {@link #getOrLoad}, concurrent calls that miss the same key
+     * share one load, but the callers waiting for it don't wait for the edit
+     * to commit. Their streams return the bytes of the value as the loader
+     * writes them, blocking until more are written, and end once the edit
+     * commits. If the load fails, they throw. If the entry can't be read
+     * after the load, they throw FileNotFoundException instead of the stream
+     * being null. Bytes written by {@link Editor#transferFrom} reach them
+     * when each transfer completes.
+     */
+    public InputStream getOrLoadStream(String key, final int index, Loader loader)
             throws IOException {
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
-                || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // Snapshot is stale.
+        if (index < 0 || index >= valueCount) {
+            throw new IllegalArgumentException("Expected index " + index + " to "
+                    + "be greater than 0 and less than the maximum value count "
+                    + "of " + valueCount);
         }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // Another edit is in progress.
+        final HashedKey hashedKey = HashedKey.hash(keyHasher, key);
+        ensureIndexed(hashedKey);
+        Snapshot snapshot = getHashed(hashedKey);
+        if (snapshot == null) {
+            Load load = new Load(valueCount);
+            Load existing = loads.putIfAbsent(hashedKey, load);
+            if (existing != null) {
+                return existing.newInputStream(index, new Callable<InputStream>() {
+                    public InputStream call() throws IOException {
+                        Snapshot snapshot = getHashed(hashedKey);
+                        return snapshot != null ? valueStream(snapshot, index) : null;
+                    }
+                });
+            }
+            load(key, hashedKey, load, loader);
+            snapshot = getHashed(hashedKey);
         }
+        return snapshot != null ? valueStream(snapshot, index) : null;
+    }
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+    /**
+     * Runs {@code loader} to create the entry named {@code key} and commits
+     * it, unless it exists or is being edited already. Waiters for
+     * {@code load} are released when this returns or throws.
+     */
+    private void load(String key, HashedKey hashedKey, Load load, Loader loader)
+            throws IOException {
+        Throwable failure = null;
+        Editor editor = null;
+        try {
+            // Another load may have committed between the caller's miss and
+            // this one being registered.
+            Segment segment = segmentFor(hashedKey);
+            if (segment.mightContain(hashedKey) && segment.stat(hashedKey, false) != null) {
+                return;
+            }
+            editor = editHashed(hashedKey, ANY_SEQUENCE_NUMBER);
+            if (editor == null) {
+                return; // Another edit is in progress.
+            }
+            editor.load = load;
+            loader.load(key, editor);
+            load.seal();
+            editor.commit();
+            if (editor.hasErrors) {
+                throw new IOException("failed to write the loaded entry");
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } catch (Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+            loads.remove(hashedKey, load);
+            load.finish(failure);
+        }
+    }
 
-        return editor;
+    /** Returns a stream of the value at {@code index} that closes {@code snapshot}. */
+    private static InputStream valueStream(final Snapshot snapshot, int index)
+            throws IOException {
+        InputStream in;
+        try {
+            in = snapshot.openStream(index);
+        } catch (IOException e) {
+            snapshot.close();
+            throw e;
+        }
+        return new FilterInputStream(in) {
+            @Override public void close() {
+                snapshot.close();
+            }
+        };
     }
 
     /** Returns the directory where this cache stores its data. */
@@ -226,7 +888,7 @@ public final class DiskLruCache implements Closeable {
      * Returns the maximum number of bytes that this cache should use to store
      * its data.
      */
-    public synchronized long getMaxSize() {
+    public long getMaxSize() {
         return maxSize;
     }
 
@@ -234,396 +896,2616 @@ public final class DiskLruCache implements Closeable {
      * Changes the maximum number of bytes the cache can store and queues a job
      * to trim the existing store, if necessary.
      */
-    public synchronized void setMaxSize(long maxSize) {
+    public void setMaxSize(long maxSize) {
         this.maxSize = maxSize;
+        splitMaxSize(maxSize);
         executorService.submit(cleanupCallable);
     }
 
+    /**
+     * Returns the number of bytes of dirty files, left behind by edits that
+     * never completed, that have been deleted since this cache was opened.
+     * They are deleted in the background, so this grows for a while after
+     * {@link #open}.
+     */
+    public long getReclaimedBytes() {
+        return sweeper.getReclaimedBytes();
+    }
+
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
         return size;
     }
 
-    private void indexFiles() {
-        String[] extensions = new String[valueCount];
-        for (int i = 0; i < valueCount; i++) {
-            extensions[i] = Integer.toString(i);
-        }
-        for (File f : FileUtils.listFiles(directory, extensions, true)) {
-            String[] keyValue = f.getName().split("\\.");
-            // Create entry if it does not exist
-            Entry entry;
-            if (!lruEntries.containsKey(keyValue[0])) {
-                entry = new Entry(keyValue[0]);
-                lruEntries.put(keyValue[0], entry);
-            } else {
-                entry = lruEntries.get(keyValue[0]);
+    /**
+     * Returns the number of bytes of values held in memory.
+     *
+     * @see Options#setMemoryCache
+     */
+    public long memoryCacheSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            if (segment.memoryCache != null) {
+                size += segment.memoryCache.size();
             }
-            // Set length of value
-            entry.lengths[Integer.parseInt(keyValue[1])] = f.length();
-            entry.readable = true;
         }
+        return size;
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
-        Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
+    /**
+     * Restores the cache from the index and the journals written after it,
+     * re-indexing subdirectories that changed behind their back. Falls back to
+     * indexing the whole directory if there is no usable index.
+     */
+    private void readState() throws IOException {
+        long[] generations = journalGenerations();
+        Map<String, Long> dirModified = new HashMap<String, Long>();
+        long indexGeneration = readIndex(dirModified);
+        boolean reindexed;
+        if (indexGeneration == -1) {
+            indexFiles(subdirectories());
+            reindexed = true;
+        } else {
+            long journalModified = replayJournals(generations, indexGeneration);
+            reindexed = reindexStaleDirs(dirModified, journalModified);
         }
 
-        // If this edit is creating the entry for the first time, every index must have a value.
-        if (success && !entry.readable) {
-            for (int i = 0; i < valueCount; i++) {
-                if (!editor.written[i]) {
-                    editor.abort();
-                    throw new IllegalStateException(
-                            "Newly created entry didn't create value for index " + i);
-                }
-                if (!entry.getDirtyFile(i).exists()) {
-                    editor.abort();
-                    return;
-                }
-            }
+        // From now on, only the cache is expected to change the subdirectories.
+        for (File dir : subdirectories()) {
+            knownDirModified.put(dir.getName(), dir.lastModified());
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
-                }
-            } else {
-                deleteIfExists(dirty);
-            }
+        nextGeneration = indexGeneration + 1;
+        if (generations.length > 0) {
+            nextGeneration = Math.max(nextGeneration, generations[generations.length - 1] + 1);
         }
-
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
-            }
+        if (reindexed) {
+            // What was found on the filesystem is not in any journal yet.
+            compact();
         } else {
-            lruEntries.remove(entry.key);
+            deleteJournalsBefore(indexGeneration);
+            journal = Journal.create(directory, valueCount, nextGeneration++);
         }
 
-        if (size > maxSize) {
+        // The cache may have been reopened with a smaller maximum size, or
+        // found to hold more than it should, or its value log may hold mostly
+        // dead records.
+        if (trimRequired() || (valueLog != null && valueLog.compactionCandidate() != -1)) {
             executorService.submit(cleanupCallable);
         }
+        if (!fullyIndexed) {
+            executorService.submit(warmupCallable);
+        }
     }
 
     /**
-     * Drops the entry for {@code key} if it exists and can be removed. Entries
-     * actively being edited cannot be removed.
-     *
-     * @return true if an entry was removed.
-     */
-    public synchronized boolean remove(String key) throws IOException {
-        return removeHashedKey(DigestUtils.sha256Hex(key));
-    }
-
-    /**
-     * Similar to {@code Remove(String key)}, but takes a hashed key rather than an unhashed.
-     * @return true if an entry was removed.
+     * Restores the entries recorded in the index file and fills
+     * {@code dirModified} with the recorded modification time of each
+     * subdirectory. Returns the generation of the index, or -1 if there is no
+     * usable index.
      */
-    private synchronized boolean removeHashedKey(String hashedKey) throws IOException {
-        Entry entry = lruEntries.get(hashedKey);
-        if (entry == null || entry.currentEditor != null) {
-            return false;
+    private long readIndex(Map<String, Long> dirModified) {
+        if (!indexFile.exists()) {
+            return -1;
         }
-
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (file.exists() && !file.delete()) {
-                throw new IOException("failed to delete " + file);
+        DataInputStream in = null;
+        try {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)), new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() != INDEX_MAGIC
+                    || in.readInt() != INDEX_VERSION
+                    || in.readInt() != valueCount) {
+                return -1;
+            }
+            long sequenceNumber = in.readLong();
+            long generation = in.readLong();
+            int dirCount = in.readInt();
+            for (int i = 0; i < dirCount; i++) {
+                dirModified.put(in.readUTF(), in.readLong());
+            }
+            int entryCount = in.readInt();
+            if (entryCount < 0
+                    || (long) entryCount * indexRecordSize() > indexFile.length()) {
+                dirModified.clear();
+                return -1;
+            }
+            HashedKey[] keys = new HashedKey[entryCount];
+            long[] sequenceNumbers = new long[entryCount];
+            long[] lengths = new long[entryCount * valueCount];
+            long[] locations = logValueSize > 0 ? new long[entryCount * valueCount] : null;
+            byte[] hash = new byte[HASH_LENGTH];
+            for (int i = 0; i < entryCount; i++) {
+                in.readFully(hash);
+                keys[i] = HashedKey.fromBytes(hash, 0);
+                sequenceNumbers[i] = in.readLong();
+                for (int j = 0; j < valueCount; j++) {
+                    lengths[i * valueCount + j] = in.readLong();
+                }
+                for (int j = 0; locations != null && j < valueCount; j++) {
+                    locations[i * valueCount + j] = in.readLong();
+                }
+            }
+            long checksum = checked.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                dirModified.clear();
+                return -1;
+            }
+
+            for (int i = 0; i < entryCount; i++) {
+                Entry entry = new Entry(keys[i]);
+                entry.sequenceNumber = sequenceNumbers[i];
+                for (int j = 0; j < valueCount; j++) {
+                    entry.lengths[j] = lengths[i * valueCount + j];
+                    entry.segment.size += entry.lengths[j];
+                }
+                if (locations != null) {
+                    System.arraycopy(locations, i * valueCount, entry.locations, 0, valueCount);
+                    countLogValues(entry, true);
+                }
+                entry.publish();
+                entry.segment.put(entry);
+            }
+            nextSequenceNumber.set(sequenceNumber);
+            return generation;
+        } catch (IOException e) {
+            dirModified.clear();
+            return -1;
+        } finally {
+            Util.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Replays the journals written since the index in order. Returns the last
+     * time a replayed journal was written to, or -1 if there were none.
+     */
+    private long replayJournals(long[] generations, long indexGeneration) throws IOException {
+        final Set<HashedKey> dirtyKeys = new HashSet<HashedKey>();
+        Journal.Handler handler = new Journal.Handler() {
+            public void clean(HashedKey key, long sequenceNumber, long[] lengths,
+                    long[] locations) {
+                Segment segment = segmentFor(key);
+                segment.redundantOpCount++;
+                Entry entry = segment.get(key);
+                if (entry == null) {
+                    entry = new Entry(key);
+                    segment.put(entry);
+                }
+                countLogValues(entry, false);
+                for (int i = 0; i < valueCount; i++) {
+                    segment.size += lengths[i] - entry.lengths[i];
+                    entry.lengths[i] = lengths[i];
+                }
+                if (locations != null) {
+                    System.arraycopy(locations, 0, entry.locations, 0, valueCount);
+                    countLogValues(entry, true);
+                }
+                entry.sequenceNumber = sequenceNumber;
+                entry.publish();
+                segment.update(entry);
+                if (sequenceNumber >= nextSequenceNumber.get()) {
+                    nextSequenceNumber.set(sequenceNumber + 1);
+                }
+                dirtyKeys.remove(key);
+            }
+
+            public void dirty(HashedKey key) {
+                segmentFor(key).redundantOpCount++;
+                dirtyKeys.add(key);
+            }
+
+            public void remove(HashedKey key) {
+                Segment segment = segmentFor(key);
+                segment.redundantOpCount++;
+                Entry entry = segment.remove(key);
+                if (entry != null) {
+                    countLogValues(entry, false);
+                    for (long length : entry.lengths) {
+                        segment.size -= length;
+                    }
+                }
+                dirtyKeys.remove(key);
+            }
+
+            public void read(HashedKey key) {
+                Segment segment = segmentFor(key);
+                segment.redundantOpCount++;
+                segment.get(key);
+            }
+        };
+
+        long modified = -1;
+        for (long generation : generations) {
+            if (generation < indexGeneration) {
+                continue;
+            }
+            File file = Journal.fileFor(directory, generation);
+            if (Journal.replay(file, valueCount, logValueSize > 0, generation, handler) != -1) {
+                modified = Math.max(modified, file.lastModified());
+            }
+        }
+
+        // An edit that was neither committed nor aborted may have been
+        // interrupted halfway through publishing its values.
+        for (HashedKey key : dirtyKeys) {
+            Segment segment = segmentFor(key);
+            Entry entry = segment.remove(key);
+            if (entry == null) {
+                entry = new Entry(key);
+            }
+            countLogValues(entry, false);
+            if (packedValues) {
+                deleteIfExists(entry.getPackedFile());
+                deleteIfExists(entry.getPackedDirtyFile());
+            }
+            for (int i = 0; i < valueCount; i++) {
+                if (!packedValues) {
+                    deleteIfExists(entry.getCleanFile(i));
+                    deleteIfExists(entry.getDirtyFile(i));
+                }
+                segment.size -= entry.lengths[i];
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
         }
+        for (Segment segment : segments) {
+            segment.redundantOpCount =
+                    Math.max(0, segment.redundantOpCount - segment.count());
+        }
+        return modified;
+    }
 
-        lruEntries.remove(hashedKey);
+    /**
+     * Re-indexes the subdirectories that were modified after both the index
+     * and the journals were written. Returns true if there were any.
+     */
+    private boolean reindexStaleDirs(Map<String, Long> dirModified, long journalModified)
+            throws IOException {
+        Set<String> staleDirs = new HashSet<String>();
+        List<File> dirsToIndex = new ArrayList<File>();
+        for (File dir : subdirectories()) {
+            long modified = dir.lastModified();
+            Long recorded = dirModified.remove(dir.getName());
+            // Timestamps are coarse, so a change in the same tick as the last
+            // journal write is assumed to have happened after it.
+            boolean changed = recorded == null || recorded.longValue() != modified;
+            if ((changed && modified >= journalModified)
+                    || (recorded != null && recorded.longValue() == UNINDEXED)) {
+                staleDirs.add(dir.getName());
+                dirsToIndex.add(dir);
+            }
+        }
+        // Subdirectories that were deleted since the index was written.
+        staleDirs.addAll(dirModified.keySet());
+        if (staleDirs.isEmpty()) {
+            return false;
+        }
 
+        for (Segment segment : segments) {
+            segment.removeIn(staleDirs);
+        }
+        indexFiles(dirsToIndex);
         return true;
     }
 
+    /**
+     * Writes a new index and starts a new journal, then deletes the journals
+     * the index supersedes.
+     *
+     * <p>The new journal is started before the entries are copied, one
+     * segment at a time while holding its monitor. An operation on a segment
+     * that has not been copied yet is then both in the index and in the new
+     * journal; replaying it again is harmless, as records carry the entry's
+     * whole state. The index is written without holding any segment.
+     */
+    private void compact() throws IOException {
+        synchronized (indexLock) {
+            if (closed) {
+                return;
+            }
+            directory.mkdirs();
+            Journal oldJournal = journal;
+            long generation = nextGeneration++;
+            journal = Journal.create(directory, valueCount, generation);
+            if (oldJournal != null) {
+                oldJournal.close();
+            }
 
-    /** Force buffered operations to the filesystem. */
-    public synchronized void flush() throws IOException {
-        trimToSize();
+            // A subdirectory that finishes indexing while the segments are
+            // copied may be missed, so note which were pending beforehand.
+            Set<String> pendingDirs = new HashSet<String>();
+            synchronized (this) {
+                pendingDirs.addAll(unindexedDirs);
+                pendingDirs.addAll(indexingDirs);
+            }
+
+            List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.drainReads();
+                    segment.redundantOpCount = 0;
+                    segment.appendRecords(records);
+                }
+            }
+            long sequenceNumber = nextSequenceNumber.get();
+
+            // Capture the modification times last, so any change made after
+            // the entries were copied marks its subdirectory as stale. A time
+            // the cache didn't produce itself may hide files added by hand.
+            File[] dirs = directory.listFiles();
+            if (dirs == null) {
+                throw new IOException("not a readable directory: " + directory);
+            }
+            long[] dirModified = new long[dirs.length];
+            for (int i = 0; i < dirs.length; i++) {
+                if (!dirs[i].isDirectory()) {
+                    dirModified[i] = -1;
+                } else if (pendingDirs.contains(dirs[i].getName())) {
+                    dirModified[i] = UNINDEXED;
+                } else {
+                    dirModified[i] = indexedModified(dirs[i]);
+                }
+            }
+
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(indexFileTmp)), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(valueCount);
+                out.writeLong(sequenceNumber);
+                out.writeLong(generation);
+                int dirCount = 0;
+                for (long modified : dirModified) {
+                    if (modified != -1) {
+                        dirCount++;
+                    }
+                }
+                out.writeInt(dirCount);
+                for (int i = 0; i < dirs.length; i++) {
+                    if (dirModified[i] != -1) {
+                        out.writeUTF(dirs[i].getName());
+                        out.writeLong(dirModified[i]);
+                    }
+                }
+                long recordBytes = 0;
+                for (ByteBuffer chunk : records) {
+                    recordBytes += chunk.position();
+                }
+                out.writeInt((int) (recordBytes / indexRecordSize()));
+                byte[] bytes = new byte[8192];
+                for (int i = 0; i < records.size(); i++) {
+                    ByteBuffer chunk = records.get(i);
+                    records.set(i, null); // Written chunks can be collected.
+                    chunk.flip();
+                    while (chunk.hasRemaining()) {
+                        int count = Math.min(bytes.length, chunk.remaining());
+                        chunk.get(bytes, 0, count);
+                        out.write(bytes, 0, count);
+                    }
+                }
+                out.flush();
+                out.writeLong(checked.getChecksum().getValue());
+            } finally {
+                out.close();
+            }
+            if (!indexFileTmp.renameTo(indexFile)) {
+                deleteIfExists(indexFile);
+                if (!indexFileTmp.renameTo(indexFile)) {
+                    throw new IOException("failed to rename " + indexFileTmp);
+                }
+            }
+            deleteJournalsBefore(generation);
+        }
+    }
+
+    /** Returns the size of an entry's record in the index. */
+    private int indexRecordSize() {
+        return HASH_LENGTH + 8 * (1 + (logValueSize > 0 ? 2 : 1) * valueCount);
+    }
+
+    /**
+     * Counts the values of {@code entry} that are in the value log as live,
+     * or as dead if {@code live} is false.
+     */
+    private void countLogValues(Entry entry, boolean live) {
+        if (entry.locations == null) {
+            return;
+        }
+        for (int i = 0; i < valueCount; i++) {
+            if (entry.locations[i] == 0) {
+                continue;
+            }
+            if (live) {
+                valueLog.markLive(entry.locations[i], entry.lengths[i]);
+            } else {
+                valueLog.release(entry.locations[i], entry.lengths[i]);
+            }
+        }
+    }
+
+    /**
+     * Moves the live values out of the value log's files that are mostly
+     * dead records, then deletes those files.
+     */
+    private void compactValueLog() throws IOException {
+        for (int number; !closed && (number = valueLog.compactionCandidate()) != -1; ) {
+            boolean complete = valueLog.forEachRecord(number, new ValueLog.RecordVisitor() {
+                public void record(HashedKey key, int index, long location, long length)
+                        throws IOException {
+                    relocate(key, index, location, length);
+                }
+            });
+            if (!complete) {
+                continue;
+            }
+            synchronized (indexLock) {
+                // The new locations must be recorded before the old ones go.
+                if (closed) {
+                    return;
+                }
+                journal.flush();
+                valueLog.delete(number);
+            }
+        }
+    }
+
+    /**
+     * Copies the value at {@code location} to the end of the value log, if it
+     * is still the value at {@code index} of the entry for {@code key}.
+     */
+    private void relocate(HashedKey key, int index, long location, long length)
+            throws IOException {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.peek(key);
+            if (entry == null || entry.locations[index] != location) {
+                return; // A dead record.
+            }
+        }
+        // Copy without holding the lock, then check that the value is still
+        // live. If it isn't, the copy is just another dead record.
+        long newLocation = valueLog.copy(key, index, location, length);
+        synchronized (segment) {
+            Entry entry = segment.peek(key);
+            if (entry == null || entry.locations[index] != location) {
+                return;
+            }
+            entry.version++; // Readers of the old location retry.
+            try {
+                entry.locations[index] = newLocation;
+                valueLog.release(location, length);
+                valueLog.markLive(newLocation, length);
+                entry.publish();
+                segment.update(entry);
+                segment.redundantOpCount++;
+                journal.clean(entry.key, entry.sequenceNumber, entry.lengths, entry.locations);
+            } finally {
+                entry.version++;
+            }
+        }
+    }
+
+    /**
+     * Returns the last of {@code chunks} if it has room for another index
+     * record, or else a new chunk appended to them. Chunks double in size up
+     * to {@link #INDEX_CHUNK_SIZE}, so large indexes are never copied.
+     * Off-heap indexes are copied off the heap too.
+     */
+    private ByteBuffer recordChunk(List<ByteBuffer> chunks) {
+        int recordSize = indexRecordSize();
+        ByteBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (last != null && last.remaining() >= recordSize) {
+            return last;
+        }
+        int records = last == null ? 64 : 2 * last.capacity() / recordSize;
+        int capacity = Math.max(1, Math.min(records, INDEX_CHUNK_SIZE / recordSize)) * recordSize;
+        ByteBuffer chunk = offHeapIndex
+                ? ByteBuffer.allocateDirect(capacity)
+                : ByteBuffer.allocate(capacity);
+        chunks.add(chunk);
+        return chunk;
+    }
+
+    /** Returns the generations of the journals in the directory, in ascending order. */
+    private long[] journalGenerations() {
+        String[] names = directory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] generations = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            long generation = Journal.generationOf(name);
+            if (generation != -1) {
+                generations[count++] = generation;
+            }
+        }
+        long[] result = new long[count];
+        System.arraycopy(generations, 0, result, 0, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void deleteJournalsBefore(long generation) throws IOException {
+        for (long journalGeneration : journalGenerations()) {
+            if (journalGeneration < generation) {
+                deleteIfExists(Journal.fileFor(directory, journalGeneration));
+            }
+        }
+    }
+
+    /** Returns the subdirectories of the cache directory. */
+    private List<File> subdirectories() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("not a readable directory: " + directory);
+        }
+        List<File> dirs = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                dirs.add(file);
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * Indexes the values stored in {@code dirs}, or with lazy indexing defers
+     * that until they are first accessed or warmed in the background.
+     */
+    private void indexFiles(List<File> dirs) throws IOException {
+        if (!lazyIndexing) {
+            loadFiles(dirs);
+            return;
+        }
+        synchronized (this) {
+            for (File dir : dirs) {
+                unindexedDirs.add(dir.getName());
+            }
+            fullyIndexed = unindexedDirs.isEmpty();
+        }
+    }
+
+    /**
+     * Makes sure the subdirectory holding {@code hashedKey} has been indexed,
+     * indexing it now if necessary.
+     */
+    private void ensureIndexed(HashedKey hashedKey) throws IOException {
+        if (fullyIndexed) {
+            return;
+        }
+        indexDir(hashedKey.subdirectoryName());
+    }
+
+    /**
+     * Indexes the subdirectory {@code dirName} unless that has been done
+     * already. If another thread is indexing it, waits for it to finish.
+     */
+    private void indexDir(String dirName) throws IOException {
+        synchronized (this) {
+            while (indexingDirs.contains(dirName)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (!unindexedDirs.remove(dirName)) {
+                return;
+            }
+            indexingDirs.add(dirName);
+        }
+        try {
+            loadFiles(Collections.singletonList(new File(directory, dirName)));
+        } finally {
+            synchronized (this) {
+                indexingDirs.remove(dirName);
+                fullyIndexed = unindexedDirs.isEmpty() && indexingDirs.isEmpty();
+                notifyAll();
+            }
+        }
+        if (trimRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /**
+     * Loads the values stored in {@code dirs}, scanning them in parallel.
+     * Without a journal the filesystem's timestamps are the best record of
+     * when each entry was last used, so the entries are added in that order
+     * and the coldest are evicted first.
+     */
+    private void loadFiles(List<File> dirs) throws IOException {
+        final Map<HashedKey, RecoveredEntry> recovered = new HashMap<HashedKey, RecoveredEntry>();
+        DirectoryIndexer.Sink sink = new DirectoryIndexer.Sink() {
+            public void accept(List<IndexedValue> values) {
+                synchronized (recovered) {
+                    for (IndexedValue value : values) {
+                        RecoveredEntry entry = recovered.get(value.key);
+                        if (entry == null) {
+                            entry = new RecoveredEntry(new Entry(value.key), valueCount);
+                            recovered.put(value.key, entry);
+                        }
+                        entry.entry.lengths[value.index] = value.length;
+                        entry.found[value.index] = true;
+                        entry.valueCount++;
+                        entry.lastUsed = Math.max(entry.lastUsed, value.lastUsed);
+                    }
+                }
+            }
+        };
+        if (virtualThreads) {
+            ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor();
+            try {
+                DirectoryIndexer.index(dirs, valueCount, packedValues, executor, sink);
+            } finally {
+                executor.shutdown();
+            }
+        } else {
+            DirectoryIndexer.index(dirs, valueCount, packedValues,
+                    Runtime.getRuntime().availableProcessors(), sink);
+        }
+
+        List<RecoveredEntry> entries = new ArrayList<RecoveredEntry>(recovered.size());
+        for (RecoveredEntry entry : recovered.values()) {
+            if (keptLoggedKeys.remove(entry.entry.key)
+                    && mergeIntoLogged(entry.entry.key, entry.entry.lengths, entry.found)) {
+                continue;
+            }
+            if (entry.valueCount == valueCount) {
+                entries.add(entry);
+            } else {
+                // An incomplete entry can never be read, so reclaim its space.
+                for (int i = 0; i < valueCount; i++) {
+                    deleteIfExists(entry.entry.getCleanFile(i));
+                }
+            }
+        }
+        Collections.sort(entries, RecoveredEntry.LEAST_RECENTLY_USED_FIRST);
+        for (RecoveredEntry recoveredEntry : entries) {
+            Entry entry = recoveredEntry.entry;
+            synchronized (entry.segment) {
+                if (entry.segment.contains(entry.key)) {
+                    continue; // Created before its subdirectory was indexed.
+                }
+                for (long length : entry.lengths) {
+                    entry.segment.size += length;
+                }
+                entry.lastAccessMillis = Math.max(0, recoveredEntry.lastUsed);
+                entry.publish();
+                entry.segment.put(entry);
+            }
+        }
+        if (!keptLoggedKeys.isEmpty()) {
+            // Kept entries none of whose files were found.
+            Set<String> dirNames = new HashSet<String>();
+            for (File dir : dirs) {
+                dirNames.add(dir.getName());
+            }
+            for (Iterator<HashedKey> i = keptLoggedKeys.iterator(); i.hasNext(); ) {
+                HashedKey key = i.next();
+                if (dirNames.contains(key.subdirectoryName())) {
+                    i.remove();
+                    mergeIntoLogged(key, new long[valueCount], new boolean[valueCount]);
+                }
+            }
+        }
+        for (File dir : dirs) {
+            synchronized (segmentForDir(dir.getName())) {
+                changedDir(dir);
+            }
+        }
     }
 
-    /** Closes this cache. Stored values will remain on the filesystem. */
-    public synchronized void close() throws IOException {
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
+    /**
+     * Merges the values found in files of their own, with {@code lengths},
+     * into the entry for {@code key}, which was kept while its subdirectory
+     * was re-indexed because it has values in the value log. Returns true if
+     * they were merged, or the entry is being edited and left alone. If a
+     * value of the entry that isn't in the log has no file, the entry can't
+     * be read, so it is removed and false returned.
+     */
+    private boolean mergeIntoLogged(HashedKey key, long[] lengths, boolean[] found) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.peek(key);
+            if (entry == null || !entry.hasValuesInLog()) {
+                return false;
+            }
             if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+                return true;
+            }
+            boolean complete = true;
+            for (int i = 0; i < valueCount; i++) {
+                complete &= entry.locations[i] != 0 || found[i];
+            }
+            if (segment.memoryCache != null) {
+                segment.memoryCache.remove(entry.key);
+            }
+            if (!complete) {
+                countLogValues(entry, false);
+                for (long length : entry.lengths) {
+                    segment.size -= length;
+                }
+                segment.remove(entry.key);
+                return false;
+            }
+            entry.version++; // Readers retry until the new lengths are published.
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    if (entry.locations[i] == 0) {
+                        segment.size += lengths[i] - entry.lengths[i];
+                        entry.lengths[i] = lengths[i];
+                    }
+                }
+                entry.publish();
+                segment.update(entry);
+            } finally {
+                entry.version++;
+            }
+            return true;
+        }
+    }
+
+    private void completeEdit(Editor editor, boolean success) throws IOException {
+        Segment segment = editor.entry.segment;
+        synchronized (segment) {
+            completeEdit(segment, editor, success);
+        }
+    }
+
+    private void completeEdit(Segment segment, Editor editor, boolean success)
+            throws IOException {
+        Entry entry = editor.entry;
+        if (entry.currentEditor != editor) {
+            throw new IllegalStateException();
+        }
+
+        // If this edit is creating the entry for the first time, every index must have a value.
+        if (success && !entry.readable) {
+            for (int i = 0; i < valueCount; i++) {
+                if (!editor.written[i]) {
+                    editor.abort();
+                    throw new IllegalStateException(
+                            "Newly created entry didn't create value for index " + i);
+                }
+                if (!(packedValues ? editor.packedLengths != null
+                        : editor.isLogged(i) || entry.getDirtyFile(i).exists())) {
+                    editor.abort();
+                    return;
+                }
+            }
+        }
+
+        segment.drainReads();
+        File dir = entry.getSubdirectory();
+        changingDir(dir);
+        entry.version++; // Readers retry until the new values are published.
+        try {
+            if (packedValues) {
+                publishPackedFile(segment, editor, success);
+            }
+            for (int i = 0; !packedValues && i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (editor.isLogged(i)) {
+                        replaceValue(segment, entry, i,
+                                editor.logLengths[i], editor.logLocations[i]);
+                    } else if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        replaceValue(segment, entry, i, clean.length(), 0);
+                    }
+                } else {
+                    deleteIfExists(dirty);
+                }
+            }
+
+            segment.redundantOpCount++;
+            entry.currentEditor = null;
+            segment.editing.remove(entry.key);
+            if (entry.readable | success) {
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+                    entry.lastAccessMillis = System.currentTimeMillis();
+                    if (segment.memoryCache != null) {
+                        segment.memoryCache.remove(entry.key);
+                    }
+                }
+                entry.publish();
+                segment.update(entry);
+                journal.clean(entry.key, entry.sequenceNumber, entry.lengths, entry.locations);
+            } else {
+                segment.remove(entry.key);
+                journal.remove(entry.key);
+            }
+        } finally {
+            entry.version++;
+            changedDir(dir);
+        }
+
+        if (segment.size > segment.maxSize || segment.journalRebuildRequired()
+                || (valueLog != null && valueLog.compactionCandidate() != -1)) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /**
+     * Sets the value at {@code index} of {@code entry} to one of
+     * {@code length} bytes, stored at {@code location} in the value log, or
+     * in its own clean file if that is zero. A clean file left behind by a
+     * value that moved to the log is deleted.
+     */
+    private void replaceValue(Segment segment, Entry entry, int index, long length,
+            long location) throws IOException {
+        long oldLength = entry.lengths[index];
+        if (entry.locations != null) {
+            long oldLocation = entry.locations[index];
+            if (oldLocation != 0) {
+                valueLog.release(oldLocation, oldLength);
+            } else if (location != 0) {
+                deleteIfExists(entry.getCleanFile(index));
+            }
+            if (location != 0) {
+                valueLog.markLive(location, length);
+            }
+            entry.locations[index] = location;
+        }
+        entry.lengths[index] = length;
+        segment.size = segment.size - oldLength + length;
+    }
+
+    /**
+     * Replaces the packed file of the editor's entry with the one it wrote if
+     * {@code success}, and deletes the one it wrote otherwise.
+     */
+    private void publishPackedFile(Segment segment, Editor editor, boolean success)
+            throws IOException {
+        Entry entry = editor.entry;
+        File dirty = entry.getPackedDirtyFile();
+        if (success && editor.packedLengths != null) {
+            dirty.renameTo(entry.getPackedFile());
+            for (int i = 0; i < valueCount; i++) {
+                segment.size = segment.size - entry.lengths[i] + editor.packedLengths[i];
+                entry.lengths[i] = editor.packedLengths[i];
+            }
+        } else if (!success) {
+            if (editor.packedWriter != null) {
+                editor.packedWriter.abort();
+            }
+            deleteIfExists(dirty);
+        }
+    }
+
+    /**
+     * Drops the entry for {@code key} if it exists and can be removed. Entries
+     * actively being edited cannot be removed.
+     *
+     * @return true if an entry was removed.
+     */
+    public boolean remove(String key) throws IOException {
+        HashedKey hashedKey = HashedKey.hash(keyHasher, key);
+        ensureIndexed(hashedKey);
+        return removeHashedKey(hashedKey);
+    }
+
+    /**
+     * Similar to {@code Remove(String key)}, but takes a hashed key rather than an unhashed.
+     * @return true if an entry was removed.
+     */
+    private boolean removeHashedKey(HashedKey hashedKey) throws IOException {
+        Segment segment = segmentFor(hashedKey);
+        synchronized (segment) {
+            segment.drainReads();
+            Entry entry = segment.peek(hashedKey);
+            if (entry == null || entry.currentEditor != null) {
+                return false;
+            }
+
+            File dir = entry.getSubdirectory();
+            changingDir(dir);
+            try {
+                if (packedValues) {
+                    File file = entry.getPackedFile();
+                    if (file.exists() && !file.delete()) {
+                        throw new IOException("failed to delete " + file);
+                    }
+                }
+                countLogValues(entry, false);
+                for (int i = 0; i < valueCount; i++) {
+                    File file = entry.getCleanFile(i);
+                    boolean inLog = entry.locations != null && entry.locations[i] != 0;
+                    if (!packedValues && !inLog && file.exists() && !file.delete()) {
+                        throw new IOException("failed to delete " + file);
+                    }
+                    segment.size -= entry.lengths[i];
+                    entry.lengths[i] = 0;
+                }
+            } finally {
+                changedDir(dir);
+            }
+
+            segment.redundantOpCount++;
+            journal.remove(hashedKey);
+            segment.remove(hashedKey);
+            if (segment.memoryCache != null) {
+                segment.memoryCache.remove(hashedKey);
+            }
+
+            if (segment.journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
+
+            return true;
+        }
+    }
+
+    /** Force buffered operations to the filesystem. */
+    public void flush() throws IOException {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.trimToSize();
+            }
+        }
+        journal.flush();
+    }
+
+    /**
+     * Closes this cache. Stored values will remain on the filesystem, and the
+     * journal is compacted into a new index so the next {@link #open} is fast.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (Entry entry : new ArrayList<Entry>(segment.editing.values())) {
+                    entry.currentEditor.abort();
+                }
+                segment.trimToSize();
+            }
+        }
+        compact();
+        synchronized (indexLock) {
+            closed = true;
+            journal.close();
+            if (valueLog != null) {
+                valueLog.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values. This will delete
+     * all files in the cache directory including files that weren't created by
+     * the cache.
+     */
+    public void delete() throws IOException {
+        close();
+        Util.deleteContents(directory);
+    }
+
+    private static String inputStreamToString(InputStream in) throws IOException {
+        return Util.readFully(new InputStreamReader(in, Util.UTF_8));
+    }
+
+    /**
+     * Loads the values of entries that are missing from the cache, for
+     * {@link #getOrLoad}.
+     */
+    public interface Loader {
+        /**
+         * Writes the values of the entry named {@code key} to
+         * {@code editor}, for example by fetching them from where the cache
+         * copies them from. The edit is committed when this returns and
+         * aborted if it throws, so don't commit or abort it here.
+         */
+        void load(String key, Editor editor) throws IOException;
+    }
+
+    /** Settings for {@link DiskLruCache#open(File, int, long, Options)}. */
+    public static final class Options {
+        private boolean lazyIndexing;
+        private int segmentCount = 1;
+        private boolean virtualThreads;
+        private boolean offHeapIndex;
+        private boolean packedValues;
+        private int logValueSize;
+        private long logFileSize = 64 * 1024 * 1024;
+        private long mapThreshold = 64 * 1024;
+        private boolean lazySnapshots;
+        private boolean missFilter;
+        private long memoryCacheSize;
+        private long memoryEntrySize;
+        private boolean memoryCacheOffHeap;
+        private KeyHasher keyHasher = KeyHasher.SHA_256;
+
+        /**
+         * Defers indexing subdirectories that are not covered by the index
+         * until they are first accessed, so that {@link DiskLruCache#open}
+         * returns without walking them. The rest are indexed one at a time in
+         * the background. Until then {@link DiskLruCache#size} and eviction
+         * only account for the subdirectories loaded so far, and entries that
+         * are loaded on demand start out as the most recently used.
+         */
+        public Options setLazyIndexing(boolean lazyIndexing) {
+            this.lazyIndexing = lazyIndexing;
+            return this;
+        }
+
+        /**
+         * Splits the entries into {@code segmentCount} segments by the prefix
+         * of their hashed key, each with its own lock and LRU order, so that
+         * threads working on different keys rarely contend. Each segment gets
+         * an equal share of the maximum size and evicts its own least recently
+         * used entries, so the cache as a whole only approximates LRU order.
+         * Must be a power of two between 1 and 256; defaults to 1.
+         */
+        public Options setSegmentCount(int segmentCount) {
+            if (segmentCount < 1 || segmentCount > 256
+                    || (segmentCount & (segmentCount - 1)) != 0) {
+                throw new IllegalArgumentException(
+                        "segmentCount is not a power of two between 1 and 256: " + segmentCount);
+            }
+            this.segmentCount = segmentCount;
+            return this;
+        }
+
+        /**
+         * Runs the cache's background work, such as evictions, compactions
+         * and removing stale files, on virtual threads, and indexes
+         * subdirectories with a virtual thread each rather than a pool sized
+         * to the number of processors. Virtual threads also suit callers
+         * issuing many concurrent reads; see
+         * {@link AsyncDiskLruCache#newVirtualThreadExecutor}.
+         *
+         * @throws UnsupportedOperationException if the runtime does not
+         *     support virtual threads, which were added in Java 21.
+         */
+        public Options setVirtualThreads(boolean virtualThreads) {
+            if (virtualThreads && !VirtualThreads.isAvailable()) {
+                throw new UnsupportedOperationException(
+                        "virtual threads require Java 21 or later");
+            }
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * Keeps the keys, sequence numbers, access times, value lengths and
+         * LRU order of the entries in direct memory instead of as objects on
+         * the heap, so caches of tens of millions of entries don't burden the
+         * garbage collector. Each entry costs {@code 56 + 8 * valueCount}
+         * bytes of direct memory, plus the slack of a hash table that is kept
+         * at most three quarters full; compaction temporarily needs about as
+         * much again. Raise {@code -XX:MaxDirectMemorySize} accordingly.
+         *
+         * <p>Reads then take their segment's lock briefly, so use more
+         * segments for concurrent readers. A segment can hold at least
+         * {@code 2^29 / (56 + 8 * valueCount)} entries, about eight million
+         * with one value.
+         */
+        public Options setOffHeapIndex(boolean offHeapIndex) {
+            this.offHeapIndex = offHeapIndex;
+            return this;
+        }
+
+        /**
+         * Stores all values of an entry in one file, after a header of their
+         * offsets and lengths, instead of a file per value. Reading an entry
+         * then opens one file rather than {@code valueCount}, and committing
+         * an edit renames one file. An edit appends its values to the new
+         * file in the order they are written, so each value's stream must be
+         * closed before the next one is opened; values that aren't written
+         * are copied from the previous file on commit.
+         *
+         * <p>A cache directory must always be opened with the layout it was
+         * created with.
+         */
+        public Options setPackedValues(boolean packedValues) {
+            this.packedValues = packedValues;
+            return this;
+        }
+
+        /**
+         * Appends values of at most {@code maxValueSize} bytes to a few large
+         * log files instead of giving each its own file, which saves an inode
+         * and most of a filesystem block per value. Larger values still get a
+         * file each. Once more than half of a log file holds values that were
+         * since replaced or removed, the rest are copied to the end of the log
+         * in the background and the file is deleted.
+         *
+         * <p>The values' places in the log are kept in the index and journals
+         * only, so entries with values in the log are lost if the index and
+         * journals are. A cache directory must always be opened with or
+         * without a value log as it was created; {@code maxValueSize} may
+         * change. This can't be combined with {@link #setPackedValues}.
+         */
+        public Options setValueLog(int maxValueSize) {
+            if (maxValueSize <= 0) {
+                throw new IllegalArgumentException("maxValueSize <= 0");
+            }
+            this.logValueSize = maxValueSize;
+            return this;
+        }
+
+        /** Sets the size at which a new value log file is started. */
+        Options setValueLogFileSize(long logFileSize) {
+            this.logFileSize = logFileSize;
+            return this;
+        }
+
+        /**
+         * Sets the size from which {@link Snapshot#getByteBuffer} maps values
+         * into memory rather than reading them into the heap; defaults to 64
+         * KiB. Zero maps all values.
+         */
+        public Options setMemoryMapThreshold(long mapThreshold) {
+            if (mapThreshold < 0) {
+                throw new IllegalArgumentException("mapThreshold < 0");
+            }
+            this.mapThreshold = mapThreshold;
+            return this;
+        }
+
+        /**
+         * Makes snapshots open the files of their values when the values are
+         * first read, rather than when the snapshot is created, so reading one
+         * value of an entry opens one file.
+         *
+         * <p>Each file is checked as it is opened to still hold the values the
+         * snapshot was created for. If the entry was committed or removed in
+         * the meantime, {@link Snapshot#getInputStream(int)} returns null and
+         * the other reads throw an {@code IOException} for values that weren't
+         * opened yet. {@link DiskLruCache#get} no longer returns null for
+         * entries whose files were deleted behind the cache's back; reading
+         * them fails the same way.
+         */
+        public Options setLazySnapshots(boolean lazySnapshots) {
+            this.lazySnapshots = lazySnapshots;
+            return this;
+        }
+
+        /**
+         * Keeps a counting Bloom filter of the keys in the cache, so that
+         * {@link DiskLruCache#get}, {@link DiskLruCache#stat} and
+         * {@link DiskLruCache#contains} answer most misses without looking
+         * up the key in the index. That saves taking a segment's lock with
+         * {@link #setOffHeapIndex}, and most of the lookup otherwise. The
+         * filter costs about 5 bytes per entry and is rebuilt from the index
+         * when the cache is opened.
+         */
+        public Options setMissFilter(boolean missFilter) {
+            this.missFilter = missFilter;
+            return this;
+        }
+
+        /**
+         * Holds the values of recently used entries of up to
+         * {@code maxEntrySize} bytes in memory, so that reading them again
+         * doesn't open any files. Entries are cached when they are read or
+         * committed, and dropped when they are committed again, removed or
+         * evicted from memory. The memory cache holds up to {@code maxSize}
+         * bytes of values, which also count towards the cache's size on disk.
+         */
+        public Options setMemoryCache(long maxSize, long maxEntrySize) {
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize <= 0");
+            }
+            if (maxEntrySize <= 0) {
+                throw new IllegalArgumentException("maxEntrySize <= 0");
+            }
+            this.memoryCacheSize = maxSize;
+            this.memoryEntrySize = maxEntrySize;
+            return this;
+        }
+
+        /**
+         * Holds the values of the memory cache in direct buffers, outside the
+         * Java heap. Their memory is freed when the garbage collector
+         * collects the buffers.
+         */
+        public Options setMemoryCacheOffHeap(boolean memoryCacheOffHeap) {
+            this.memoryCacheOffHeap = memoryCacheOffHeap;
+            return this;
+        }
+
+        /**
+         * Sets how keys are hashed into file names; defaults to
+         * {@link KeyHasher#SHA_256}. A cache directory must always be opened
+         * with the hasher it was created with. {@link KeyHasher#MURMUR3_128}
+         * is faster, which matters most for lookups that hit the cache.
+         */
+        public Options setKeyHasher(KeyHasher keyHasher) {
+            if (keyHasher == null) {
+                throw new NullPointerException("keyHasher == null");
+            }
+            this.keyHasher = keyHasher;
+            return this;
+        }
+    }
+
+    /** The metadata of an entry, as returned by {@link DiskLruCache#stat}. */
+    public static final class Stat {
+        private final long sequenceNumber;
+        private final long[] lengths;
+        private final long lastAccessMillis;
+
+        private Stat(long sequenceNumber, long[] lengths, long lastAccessMillis) {
+            this.sequenceNumber = sequenceNumber;
+            this.lengths = lengths;
+            this.lastAccessMillis = lastAccessMillis;
+        }
+
+        /**
+         * Returns the sequence number of the entry's last commit, which
+         * changes whenever the entry's values do.
+         */
+        public long getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        /** Returns the byte length of the value for {@code index}. */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
+        /**
+         * Returns when the entry was last read or committed, in milliseconds
+         * since the epoch. Reads and commits before the cache was opened are
+         * not recorded, so this is 0 for entries that haven't been used since,
+         * or the time their files were last modified if the cache had to
+         * index them from its directory.
+         */
+        public long getLastAccessMillis() {
+            return lastAccessMillis;
+        }
+    }
+
+    /** A snapshot of the values for an entry. */
+    public final class Snapshot implements Closeable {
+        private final HashedKey key;
+        private final long sequenceNumber;
+        /** The streams of the values; those of a lazy snapshot are null until opened. */
+        private final RegionInputStream[] ins;
+        private final long[] lengths;
+        /** The entry of a lazy snapshot, or null. */
+        private final Entry entry;
+        /** Where the values of a lazy snapshot are in the value log, or null. */
+        private final long[] locations;
+        private boolean closed;
+
+        private Snapshot(HashedKey key, long sequenceNumber, RegionInputStream[] ins,
+                long[] lengths) {
+            this.key = key;
+            this.sequenceNumber = sequenceNumber;
+            this.ins = ins;
+            this.lengths = lengths;
+            this.entry = null;
+            this.locations = null;
+        }
+
+        /**
+         * Creates a lazy snapshot of the values {@code entry} published as
+         * {@code sequenceNumber}.
+         */
+        private Snapshot(Entry entry, long sequenceNumber, long[] lengths, long[] locations) {
+            this.key = entry.key;
+            this.sequenceNumber = sequenceNumber;
+            this.ins = new RegionInputStream[valueCount];
+            this.lengths = lengths;
+            this.entry = entry;
+            this.locations = locations;
+        }
+
+        /**
+         * Returns the stream of the value at {@code index}, opening it if this
+         * is a lazy snapshot, or null if the value was changed since the
+         * snapshot was created.
+         */
+        private RegionInputStream stream(int index) {
+            if (ins[index] != null || entry == null || closed) {
+                return ins[index];
+            }
+            if (locations != null && locations[index] != 0) {
+                // Records in the value log are never overwritten, only deleted.
+                ins[index] = valueLog.open(locations[index], lengths[index]);
+                return ins[index];
+            }
+            RegionInputStream[] opened;
+            try {
+                if (packedValues) {
+                    opened = PackedValues.open(entry.getPackedFile(), valueCount);
+                } else {
+                    FileInputStream in = new FileInputStream(entry.getCleanFile(index));
+                    opened = new RegionInputStream[] {
+                            new RegionInputStream(in.getChannel(), 0, lengths[index], in)
+                    };
+                }
+            } catch (IOException e) {
+                return null; // Missing, or removed and replaced meanwhile.
+            }
+            // The file may have been replaced by a commit since the snapshot
+            // was created. The open file is kept even if it's replaced later.
+            if (!segmentFor(key).isPublished(entry, sequenceNumber)) {
+                closeAll(opened);
+                return null;
+            }
+            if (opened.length == 1) {
+                ins[index] = opened[0];
+            } else {
+                for (int i = 0; i < valueCount; i++) {
+                    if (ins[i] == null) {
+                        ins[i] = opened[i];
+                    } else {
+                        opened[i].close();
+                    }
+                }
+            }
+            return ins[index];
+        }
+
+        /**
+         * Returns the stream of the value at {@code index}.
+         *
+         * @throws IOException if the snapshot is lazy and the value was
+         *     changed since it was created.
+         */
+        private RegionInputStream openStream(int index) throws IOException {
+            RegionInputStream in = stream(index);
+            if (in == null) {
+                if (closed) {
+                    throw new IllegalStateException("snapshot is closed");
+                }
+                throw new FileNotFoundException("entry changed since the snapshot was created");
+            }
+            return in;
+        }
+
+        /**
+         * Returns an editor for this snapshot's entry, or null if either the
+         * entry has changed since this snapshot was created or if another edit
+         * is in progress.
+         */
+        public Editor edit() throws IOException {
+            return DiskLruCache.this.editHashed(key, sequenceNumber);
+        }
+
+        /**
+         * Returns the unbuffered stream with the value for {@code index}. For
+         * a lazy snapshot, this is null if the value was changed since the
+         * snapshot was created.
+         *
+         * @see Options#setLazySnapshots
+         */
+        public InputStream getInputStream(int index) {
+            return stream(index);
+        }
+
+        /**
+         * Returns a new unbuffered stream of up to {@code length} bytes of the
+         * value for {@code index}, starting at {@code offset} within the
+         * value. Only those bytes are read from the file. The stream can be
+         * read until the stream of the value is closed, and closing it leaves
+         * that stream open.
+         */
+        public InputStream getInputStream(int index, long offset, long length)
+                throws IOException {
+            if (offset < 0 || length < 0) {
+                throw new IllegalArgumentException("offset < 0 || length < 0");
+            }
+            return openStream(index).range(offset, length);
+        }
+
+        /**
+         * Reads bytes of the value for {@code index}, starting at
+         * {@code offset} within the value, into {@code dst} until it is full
+         * or the value ends. Returns the number of bytes read, or -1 if
+         * {@code offset} is at or past the end of the value.
+         *
+         * <p>This doesn't move the stream of the value, but must be called
+         * before that stream is closed.
+         */
+        public int read(int index, long offset, ByteBuffer dst) throws IOException {
+            if (offset < 0) {
+                throw new IllegalArgumentException("offset < 0");
+            }
+            return openStream(index).read(offset, dst);
+        }
+
+        /** Returns the string value for {@code index}. */
+        public String getString(int index) throws IOException {
+            return inputStreamToString(openStream(index));
+        }
+
+        /**
+         * Returns the value for {@code index} as a read-only buffer. Values of
+         * at least {@link Options#setMemoryMapThreshold} bytes are mapped into
+         * memory, so they can be written to a channel without being copied
+         * through the Java heap. Smaller values are read into a heap buffer,
+         * as that is cheaper than mapping them. The buffer remains valid after
+         * the snapshot is closed.
+         *
+         * <p>This doesn't move the stream of the value, but must be called
+         * before that stream is closed, for example by {@link #getString}.
+         */
+        public ByteBuffer getByteBuffer(int index) throws IOException {
+            return openStream(index).toByteBuffer(0, lengths[index], mapThreshold);
+        }
+
+        /**
+         * Writes the value for {@code index} to {@code target} and returns the
+         * number of bytes written. The bytes are transferred by
+         * {@link FileChannel#transferTo}, which lets the operating system copy
+         * them straight from the file when {@code target} is a socket or
+         * another file.
+         *
+         * <p>This doesn't move the stream of the value, but must be called
+         * before that stream is closed.
+         */
+        public long transferTo(int index, WritableByteChannel target) throws IOException {
+            return transferTo(index, 0, lengths[index], target);
+        }
+
+        /**
+         * Writes up to {@code count} bytes of the value for {@code index},
+         * starting at {@code position} within the value, to {@code target}.
+         * Returns the number of bytes written, which is less than requested
+         * if the value ends first or if {@code target} is non-blocking and
+         * fills up.
+         */
+        public long transferTo(int index, long position, long count, WritableByteChannel target)
+                throws IOException {
+            if (position < 0 || count < 0) {
+                throw new IllegalArgumentException("position < 0 || count < 0");
+            }
+            long length = lengths[index];
+            if (position >= length) {
+                return 0;
+            }
+            return openStream(index).transferTo(position, Math.min(count, length - position),
+                    target);
+        }
+
+        /** Returns the byte length of the value for {@code index}. */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
+        public void close() {
+            closed = true;
+            for (InputStream in : ins) {
+                Util.closeQuietly(in);
+            }
+        }
+    }
+
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            // Eat all writes silently. Nom nom.
+        }
+    };
+
+    /** Edits the values for an entry. */
+    public final class Editor {
+        private final Entry entry;
+        private final boolean[] written;
+        private boolean hasErrors;
+        private boolean committed;
+        /** Writes the packed file, once a value has been written. */
+        private PackedValues.Writer packedWriter;
+        /** The lengths of the values in the packed file, once it is written. */
+        private long[] packedLengths;
+        /** Where the values appended to the value log on commit went, or zero. */
+        private long[] logLocations;
+        private long[] logLengths;
+        /** Records the progress of the values, if this edit loads them for getOrLoad. */
+        private Load load;
+
+        private Editor(Entry entry) {
+            this.entry = entry;
+            this.written = (entry.readable) ? null : new boolean[valueCount];
+        }
+
+        /**
+         * Returns an unbuffered input stream to read the last committed value,
+         * or null if no value has been committed.
+         */
+        public InputStream newInputStream(int index) throws IOException {
+            synchronized (entry.segment) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                if (!entry.readable) {
+                    return null;
+                }
+                if (entry.locations != null && entry.locations[index] != 0) {
+                    return valueLog.open(entry.locations[index], entry.lengths[index]);
+                }
+                try {
+                    return packedValues
+                            ? PackedValues.open(entry.getPackedFile(), valueCount, index)
+                            : new FileInputStream(entry.getCleanFile(index));
+                } catch (FileNotFoundException e) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * Returns the last committed value as a string, or null if no value
+         * has been committed.
+         */
+        public String getString(int index) throws IOException {
+            InputStream in = newInputStream(index);
+            return in != null ? inputStreamToString(in) : null;
+        }
+
+        /**
+         * Returns a new unbuffered output stream to write the value at
+         * {@code index}. If the underlying output stream encounters errors
+         * when writing to the filesystem, this edit will be aborted when
+         * {@link #commit} is called. The returned output stream does not throw
+         * IOExceptions.
+         *
+         * <p>If the cache packs the values of an entry into one file, each
+         * stream must be closed before the next is opened.
+         */
+        public OutputStream newOutputStream(int index) throws IOException {
+            synchronized (entry.segment) {
+                startWriting(index);
+                if (packedValues) {
+                    PackedValues.Writer writer = packedWriter();
+                    if (writer == null) {
+                        // We are unable to recover. Silently eat the writes.
+                        return NULL_OUTPUT_STREAM;
+                    }
+                    long offset = writer.position();
+                    OutputStream out = writer.newOutputStream(index);
+                    if (load != null) {
+                        load.start(index, entry.getPackedDirtyFile(), offset);
+                    }
+                    return new FaultHidingOutputStream(out, index);
+                }
+                FileOutputStream outputStream = newDirtyFileStream(index);
+                if (outputStream == null) {
+                    // We are unable to recover. Silently eat the writes.
+                    return NULL_OUTPUT_STREAM;
+                }
+                if (load != null) {
+                    load.start(index, entry.getDirtyFile(index), 0);
+                }
+                return new FaultHidingOutputStream(outputStream, index);
+            }
+        }
+
+        /**
+         * Writes the value at {@code index} from {@code source} until its end
+         * and returns the number of bytes written.
+         *
+         * @see #transferFrom(int, ReadableByteChannel, long)
+         */
+        public long transferFrom(int index, ReadableByteChannel source) throws IOException {
+            return transferFrom(index, source, Long.MAX_VALUE);
+        }
+
+        /**
+         * Writes the value at {@code index} from up to {@code count} bytes of
+         * {@code source}, stopping early at its end, and returns the number of
+         * bytes written. The bytes are transferred by
+         * {@link FileChannel#transferFrom}, which avoids copying them through
+         * the Java heap when {@code source} is a file and lets the operating
+         * system copy them directly where it can.
+         *
+         * <p>If {@code source} is non-blocking, this stops as soon as it has
+         * no bytes available. If reading or writing fails, the exception is
+         * thrown and this edit will be aborted when {@link #commit} is called.
+         */
+        public long transferFrom(int index, ReadableByteChannel source, long count)
+                throws IOException {
+            if (count < 0) {
+                throw new IllegalArgumentException("count < 0");
+            }
+            PackedValues.Writer writer = null;
+            FileOutputStream outputStream = null;
+            synchronized (entry.segment) {
+                startWriting(index);
+                if (packedValues) {
+                    writer = packedWriter();
+                } else {
+                    outputStream = newDirtyFileStream(index);
+                }
+                if (writer == null && outputStream == null) {
+                    return 0; // We are unable to recover.
+                }
+            }
+            try {
+                long transferred;
+                if (writer != null) {
+                    long offset = writer.position();
+                    if (load != null) {
+                        load.start(index, entry.getPackedDirtyFile(), offset);
+                    }
+                    transferred = writer.transferFrom(index, source, count);
+                } else {
+                    if (load != null) {
+                        load.start(index, entry.getDirtyFile(index), 0);
+                    }
+                    try {
+                        transferred = Util.transferFrom(source, outputStream.getChannel(), 0, count);
+                    } finally {
+                        outputStream.close();
+                    }
+                }
+                if (load != null) {
+                    load.wrote(index, transferred);
+                }
+                return transferred;
+            } catch (IOException e) {
+                hasErrors = true;
+                throw e;
+            }
+        }
+
+        /** Checks that the value at {@code index} can be written. */
+        private void startWriting(int index) {
+            if (index < 0 || index >= valueCount) {
+                throw new IllegalArgumentException("Expected index " + index + " to "
+                        + "be greater than 0 and less than the maximum value count "
+                        + "of " + valueCount);
+            }
+            if (entry.currentEditor != this) {
+                throw new IllegalStateException();
+            }
+            if (!entry.readable) {
+                written[index] = true;
+            }
+        }
+
+        /**
+         * Opens the dirty file of the value at {@code index}, or returns null
+         * if it cannot be created.
+         */
+        private FileOutputStream newDirtyFileStream(int index) {
+            File dirtyFile = entry.getDirtyFile(index);
+            changingDir(dirtyFile.getParentFile());
+            try {
+                return new FileOutputStream(dirtyFile);
+            } catch (FileNotFoundException e) {
+                // Attempt to recreate the cache directory.
+                dirtyFile.getParentFile().mkdirs();
+                try {
+                    return new FileOutputStream(dirtyFile);
+                } catch (FileNotFoundException e2) {
+                    return null;
+                }
+            } finally {
+                changedDir(dirtyFile.getParentFile());
+            }
+        }
+
+        /**
+         * Returns the writer of the packed file, creating the file if this is
+         * the first value written, or null if it cannot be created.
+         */
+        private PackedValues.Writer packedWriter() {
+            if (packedWriter == null) {
+                File dirtyFile = entry.getPackedDirtyFile();
+                changingDir(dirtyFile.getParentFile());
+                try {
+                    packedWriter = new PackedValues.Writer(dirtyFile, valueCount);
+                } catch (IOException e) {
+                    // Attempt to recreate the cache directory.
+                    dirtyFile.getParentFile().mkdirs();
+                    try {
+                        packedWriter = new PackedValues.Writer(dirtyFile, valueCount);
+                    } catch (IOException e2) {
+                        return null;
+                    }
+                } finally {
+                    changedDir(dirtyFile.getParentFile());
+                }
+            }
+            return packedWriter;
+        }
+
+        /** Sets the value at {@code index} to {@code value}. */
+        public void set(int index, String value) throws IOException {
+            Writer writer = null;
+            try {
+                writer = new OutputStreamWriter(newOutputStream(index), Util.UTF_8);
+                writer.write(value);
+            } finally {
+                Util.closeQuietly(writer);
+            }
+        }
+
+        /**
+         * Commits this edit so it is visible to readers.  This releases the
+         * edit lock so another edit may be started on the same key.
+         */
+        public void commit() throws IOException {
+            if (!hasErrors && packedWriter != null) {
+                // Copying the values that weren't written can take a while, so
+                // do it before taking the segment's lock. No one else writes
+                // to this entry's files until the edit completes.
+                try {
+                    packedLengths = packedWriter.finish(
+                            entry.readable ? entry.getPackedFile() : null);
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+            if (!hasErrors && valueLog != null) {
+                try {
+                    appendSmallValues();
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+            if (hasErrors) {
+                completeEdit(this, false);
+                removeHashedKey(entry.key); // The previous entry is stale.
+            } else {
+                completeEdit(this, true);
+                if (entry.segment.memoryCache != null) {
+                    cacheInMemory();
+                }
+            }
+            committed = true;
+        }
+
+        /** Reads the committed values into the memory cache, if they fit. */
+        private void cacheInMemory() {
+            Segment segment = entry.segment;
+            long sequenceNumber;
+            long[] lengths;
+            synchronized (segment) {
+                if (!entry.readable) {
+                    return;
+                }
+                sequenceNumber = entry.sequenceNumber;
+                lengths = entry.publishedLengths;
+            }
+            RegionInputStream[] ins = openCleanFiles(entry);
+            if (ins == null) {
+                return;
+            }
+            try {
+                ByteBuffer[] values = readIntoMemory(segment, ins, lengths);
+                // Another commit may have replaced the files before they were opened.
+                if (values != null && segment.isPublished(entry, sequenceNumber)) {
+                    segment.memoryCache.put(entry.key, sequenceNumber, values);
+                }
+            } finally {
+                closeAll(ins);
+            }
+        }
+
+        /**
+         * Moves the values small enough for the value log from their dirty
+         * files to the log, before taking the segment's lock.
+         */
+        private void appendSmallValues() throws IOException {
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (!dirty.exists() || dirty.length() > logValueSize) {
+                    continue;
+                }
+                long length = dirty.length();
+                if (logLocations == null) {
+                    logLocations = new long[valueCount];
+                    logLengths = new long[valueCount];
+                }
+                logLocations[i] = valueLog.append(entry.key, i, dirty);
+                logLengths[i] = length;
+                synchronized (entry.segment) {
+                    changingDir(dirty.getParentFile());
+                    try {
+                        deleteIfExists(dirty);
+                    } finally {
+                        changedDir(dirty.getParentFile());
+                    }
+                }
+            }
+        }
+
+        /** Returns true if the value at {@code index} was appended to the value log. */
+        private boolean isLogged(int index) {
+            return logLocations != null && logLocations[index] != 0;
+        }
+
+        /**
+         * Aborts this edit. This releases the edit lock so another edit may be
+         * started on the same key.
+         */
+        public void abort() throws IOException {
+            completeEdit(this, false);
+        }
+
+        public void abortUnlessCommitted() {
+            if (!committed) {
+                try {
+                    abort();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private class FaultHidingOutputStream extends FilterOutputStream {
+            private final int index;
+
+            private FaultHidingOutputStream(OutputStream out, int index) {
+                super(out);
+                this.index = index;
+            }
+
+            @Override public void write(int oneByte) {
+                try {
+                    out.write(oneByte);
+                    if (load != null) {
+                        load.wrote(index, 1);
+                    }
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void write(byte[] buffer, int offset, int length) {
+                try {
+                    out.write(buffer, offset, length);
+                    if (load != null) {
+                        load.wrote(index, length);
+                    }
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void close() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void flush() {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * A share of the cache's entries, with its own LRU order, size budget and
+     * lock. Entries that have an editor are also kept in {@code editing}.
+     */
+    private abstract class Segment {
+        /** The entries that currently have an editor. */
+        final Map<HashedKey, Entry> editing = new HashMap<HashedKey, Entry>();
+
+        long size;
+        long maxSize;
+        /** Only modified while holding the lock, but read without it. */
+        volatile int redundantOpCount;
+
+        /**
+         * The keys in this segment, or null without a miss filter. Replaced
+         * by a larger filter when it fills up.
+         */
+        volatile CountingBloomFilter keyFilter;
+
+        /** Holds the values of small entries in memory, or null. */
+        MemoryCache memoryCache;
+
+        /**
+         * Returns a snapshot of the entry for {@code key}, or null if there is
+         * no readable entry. Called without holding the lock.
+         */
+        abstract Snapshot snapshot(HashedKey key) throws IOException;
+
+        /**
+         * Returns true if the values of {@code entry} are still those it
+         * published as {@code sequenceNumber}. Called without holding the lock.
+         */
+        abstract boolean isPublished(Entry entry, long sequenceNumber);
+
+        /**
+         * Returns the metadata of the entry for {@code key}, or null if there
+         * is no readable entry, and marks the entry as used if {@code touch}
+         * is true. Called without holding the lock.
+         */
+        abstract Stat stat(HashedKey key, boolean touch) throws IOException;
+
+        /** Returns the entry for {@code key} and marks it as used, or null. */
+        abstract Entry get(HashedKey key);
+
+        /** Returns the entry for {@code key} without changing the LRU order, or null. */
+        abstract Entry peek(HashedKey key);
+
+        abstract boolean contains(HashedKey key);
+
+        /** Adds {@code entry} as the most recently used entry. */
+        abstract void put(Entry entry);
+
+        /** Stores changes to the sequence number, lengths or readability of {@code entry}. */
+        abstract void update(Entry entry);
+
+        abstract Entry remove(HashedKey key);
+
+        /** Returns the number of entries. */
+        abstract int count();
+
+        /**
+         * Returns the key of the least recently used entry that isn't being
+         * edited, or null if there is none.
+         */
+        abstract HashedKey eldestEvictableKey();
+
+        /**
+         * Removes the entries whose files are in one of the subdirectories
+         * {@code dirNames}, except those with values in the value log, which
+         * indexing the subdirectories can't find. Those are added to
+         * {@code keptLoggedKeys} so indexing merges their other values in.
+         */
+        abstract void removeIn(Set<String> dirNames);
+
+        /**
+         * Appends the readable entries to {@code chunks} in LRU order, in the
+         * index's format, adding chunks as they fill up.
+         */
+        abstract void appendRecords(List<ByteBuffer> chunks);
+
+        /** Applies the reads recorded since the last drain to the LRU order. */
+        void drainReads() throws IOException {
+        }
+
+        /** Adds the keys in this segment to {@code filter}. */
+        abstract void addKeysTo(CountingBloomFilter filter);
+
+        /**
+         * Returns false if there is certainly no entry for {@code key}. Called
+         * without holding the lock.
+         */
+        boolean mightContain(HashedKey key) {
+            CountingBloomFilter filter = keyFilter;
+            return filter == null || filter.mightContain(key);
+        }
+
+        /** Adds {@code key} to the filter, before it is added to the segment. */
+        void filterAdd(HashedKey key) {
+            CountingBloomFilter filter = keyFilter;
+            if (filter == null) {
+                return;
+            }
+            if (filter.size() >= filter.capacity()) {
+                // Readers keep using the old filter until the new one is complete.
+                filter = new CountingBloomFilter(filter.capacity() * 2);
+                addKeysTo(filter);
+                filter.add(key);
+                keyFilter = filter;
+            } else {
+                filter.add(key);
+            }
+        }
+
+        /** Removes {@code key}, which was removed from the segment, from the filter. */
+        void filterRemove(HashedKey key) {
+            CountingBloomFilter filter = keyFilter;
+            if (filter != null) {
+                filter.remove(key);
+            }
+        }
+
+        void trimToSize() throws IOException {
+            drainReads();
+            while (size > maxSize) {
+                // Entries being edited can't be removed until their edit completes.
+                HashedKey toEvict = eldestEvictableKey();
+                if (toEvict == null || !removeHashedKey(toEvict)) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * We only compact the journal when it will halve the journal size and
+         * eliminate at least 2000 ops, counted across all segments.
+         */
+        boolean journalRebuildRequired() {
+            return journalRebuildRequired(0);
+        }
+
+        /**
+         * Returns true if the journal would need compacting once
+         * {@code pendingReads} more reads are drained.
+         */
+        boolean journalRebuildRequired(int pendingReads) {
+            int threshold = REDUNDANT_OP_COMPACT_THRESHOLD / segments.length;
+            int ops = redundantOpCount + pendingReads;
+            return ops >= threshold && ops >= count();
+        }
+    }
+
+    /**
+     * A segment that keeps its entries on the heap.
+     *
+     * <p>Entries are looked up in {@code entries} without holding the lock.
+     * {@code lruEntries} holds the same entries in LRU order and is only used
+     * under the lock; reads reach it through the read buffer, which is
+     * drained before any operation that depends on the order.
+     */
+    private final class HeapSegment extends Segment {
+        private final ConcurrentHashMap<HashedKey, Entry> entries =
+                new ConcurrentHashMap<HashedKey, Entry>();
+        private final LinkedHashMap<HashedKey, Entry> lruEntries =
+                new LinkedHashMap<HashedKey, Entry>(0, 0.75f, true);
+        private final ReadBuffer<Entry> readBuffer = new ReadBuffer<Entry>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        @Override Snapshot snapshot(HashedKey key) throws IOException {
+            while (true) {
+                Entry entry = entries.get(key);
+                if (entry == null) {
+                    return null;
+                }
+                int version = entry.version;
+                if ((version & 1) != 0) {
+                    Thread.yield(); // An edit is being published.
+                    continue;
+                }
+                if (!entry.readable) {
+                    return null;
+                }
+                long sequenceNumber = entry.sequenceNumber;
+                long[] lengths = entry.publishedLengths;
+                long[] locations = entry.publishedLocations;
+                ByteBuffer[] values = memoryCache != null
+                        ? memoryCache.get(key, sequenceNumber)
+                        : null;
+
+                // An edit may be committed while the files are opened, so check
+                // that the entry wasn't changed or replaced, and retry if it was.
+                RegionInputStream[] ins = lazySnapshots || values != null
+                        ? null
+                        : openCleanFiles(entry);
+                if (entries.get(key) != entry || entry.version != version) {
+                    if (ins != null) {
+                        closeAll(ins);
+                    }
+                    continue;
+                }
+                if (values != null) {
+                    recordRead(entry);
+                    return memorySnapshot(key, sequenceNumber, values);
+                }
+                if (lazySnapshots) {
+                    recordRead(entry);
+                    return new Snapshot(entry, sequenceNumber, lengths, locations);
+                }
+                if (ins == null) {
+                    return null;
+                }
+                recordRead(entry);
+                return snapshotOf(this, key, sequenceNumber, ins, lengths);
+            }
+        }
+
+        @Override Stat stat(HashedKey key, boolean touch) throws IOException {
+            while (true) {
+                Entry entry = entries.get(key);
+                if (entry == null) {
+                    return null;
+                }
+                int version = entry.version;
+                if ((version & 1) != 0) {
+                    Thread.yield(); // An edit is being published.
+                    continue;
+                }
+                if (!entry.readable) {
+                    return null;
+                }
+                long sequenceNumber = entry.sequenceNumber;
+                long[] lengths = entry.publishedLengths;
+                if (entry.version != version) {
+                    continue;
+                }
+                if (touch) {
+                    recordRead(entry);
+                }
+                return new Stat(sequenceNumber, lengths, entry.lastAccessMillis);
+            }
+        }
+
+        @Override boolean isPublished(Entry entry, long sequenceNumber) {
+            // Files are renamed into place while the version is odd, before
+            // the sequence number changes.
+            int version = entry.version;
+            return (version & 1) == 0 && entries.get(entry.key) == entry
+                    && entry.sequenceNumber == sequenceNumber && entry.version == version;
+        }
+
+        /**
+         * Records a read of {@code entry} to be applied to the LRU order later.
+         * The reader's ring of the read buffer is drained once it fills up, or
+         * once the reads waiting in it would make compaction due. If another
+         * reader is already draining, the read may be dropped.
+         */
+        private void recordRead(Entry entry) throws IOException {
+            entry.accessed(System.currentTimeMillis());
+            int pending = readBuffer.offer(entry);
+            if (pending != -1 && pending < ReadBuffer.RING_SIZE
+                    && !journalRebuildRequired(pending)) {
+                return;
+            }
+            if (!draining.compareAndSet(false, true)) {
+                return;
+            }
+            boolean compact;
+            try {
+                synchronized (this) {
+                    drainReads();
+                    if (pending == -1) {
+                        readBuffer.offer(entry);
+                    }
+                    compact = journalRebuildRequired();
+                }
+            } finally {
+                draining.set(false);
+            }
+            if (compact) {
+                executorService.submit(cleanupCallable);
             }
         }
-        trimToSize();
-    }
 
-    private void trimToSize() throws IOException {
-        while (size > maxSize) {
-            Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            removeHashedKey(toEvict.getKey());
+        @Override Entry get(HashedKey key) {
+            return lruEntries.get(key);
         }
-    }
-
-    /**
-     * Closes the cache and deletes all of its stored values. This will delete
-     * all files in the cache directory including files that weren't created by
-     * the cache.
-     */
-    public void delete() throws IOException {
-        close();
-        Util.deleteContents(directory);
-    }
-
-    private static String inputStreamToString(InputStream in) throws IOException {
-        return Util.readFully(new InputStreamReader(in, Util.UTF_8));
-    }
-
-    /** A snapshot of the values for an entry. */
-    public final class Snapshot implements Closeable {
-        private final String key;
-        private final long sequenceNumber;
-        private final InputStream[] ins;
-        private final long[] lengths;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
-            this.key = key;
-            this.sequenceNumber = sequenceNumber;
-            this.ins = ins;
-            this.lengths = lengths;
+        @Override void addKeysTo(CountingBloomFilter filter) {
+            for (HashedKey key : entries.keySet()) {
+                filter.add(key);
+            }
         }
 
-        /**
-         * Returns an editor for this snapshot's entry, or null if either the
-         * entry has changed since this snapshot was created or if another edit
-         * is in progress.
-         */
-        public Editor edit() throws IOException {
-            return DiskLruCache.this.editHashed(key, sequenceNumber);
+        @Override Entry peek(HashedKey key) {
+            return entries.get(key);
         }
 
-        /** Returns the unbuffered stream with the value for {@code index}. */
-        public InputStream getInputStream(int index) {
-            return ins[index];
+        @Override boolean contains(HashedKey key) {
+            return entries.containsKey(key);
         }
 
-        /** Returns the string value for {@code index}. */
-        public String getString(int index) throws IOException {
-            return inputStreamToString(getInputStream(index));
+        @Override void put(Entry entry) {
+            filterAdd(entry.key);
+            lruEntries.put(entry.key, entry);
+            entries.put(entry.key, entry);
         }
 
-        /** Returns the byte length of the value for {@code index}. */
-        public long getLength(int index) {
-            return lengths[index];
+        @Override void update(Entry entry) {
+            // The maps hold the entry itself.
         }
 
-        public void close() {
-            for (InputStream in : ins) {
-                Util.closeQuietly(in);
+        @Override Entry remove(HashedKey key) {
+            if (entries.remove(key) != null) {
+                filterRemove(key);
             }
+            return lruEntries.remove(key);
         }
-    }
 
-    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
-        @Override
-        public void write(int b) throws IOException {
-            // Eat all writes silently. Nom nom.
+        /** Safe to call without holding the lock. */
+        @Override int count() {
+            return entries.size();
         }
-    };
 
-    /** Edits the values for an entry. */
-    public final class Editor {
-        private final Entry entry;
-        private final boolean[] written;
-        private boolean hasErrors;
-        private boolean committed;
-
-        private Editor(Entry entry) {
-            this.entry = entry;
-            this.written = (entry.readable) ? null : new boolean[valueCount];
+        @Override HashedKey eldestEvictableKey() {
+            for (HashedKey key : lruEntries.keySet()) {
+                if (!editing.containsKey(key)) {
+                    return key;
+                }
+            }
+            return null;
         }
 
-        /**
-         * Returns an unbuffered input stream to read the last committed value,
-         * or null if no value has been committed.
-         */
-        public InputStream newInputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
-                if (entry.currentEditor != this) {
-                    throw new IllegalStateException();
+        @Override void removeIn(Set<String> dirNames) {
+            for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+                Entry entry = i.next();
+                if (!dirNames.contains(entry.key.subdirectoryName())) {
+                    continue;
+                }
+                if (entry.hasValuesInLog()) {
+                    keptLoggedKeys.add(entry.key);
+                } else {
+                    countLogValues(entry, false);
+                    for (long length : entry.lengths) {
+                        size -= length;
+                    }
+                    i.remove();
+                    entries.remove(entry.key);
+                    filterRemove(entry.key);
                 }
+            }
+        }
+
+        @Override void appendRecords(List<ByteBuffer> chunks) {
+            for (Entry entry : lruEntries.values()) {
                 if (!entry.readable) {
-                    return null;
+                    continue;
                 }
-                try {
-                    return new FileInputStream(entry.getCleanFile(index));
-                } catch (FileNotFoundException e) {
-                    return null;
+                ByteBuffer records = recordChunk(chunks);
+                entry.key.writeTo(records);
+                records.putLong(entry.sequenceNumber);
+                for (long length : entry.lengths) {
+                    records.putLong(length);
+                }
+                if (entry.locations != null) {
+                    for (long location : entry.locations) {
+                        records.putLong(location);
+                    }
                 }
             }
         }
 
-        /**
-         * Returns the last committed value as a string, or null if no value
-         * has been committed.
-         */
-        public String getString(int index) throws IOException {
-            InputStream in = newInputStream(index);
-            return in != null ? inputStreamToString(in) : null;
+        @Override void drainReads() throws IOException {
+            if (readBuffer.isEmpty()) {
+                return;
+            }
+            List<Entry> reads = new ArrayList<Entry>();
+            readBuffer.drainTo(reads);
+            for (Entry entry : reads) {
+                if (entries.get(entry.key) == entry) {
+                    lruEntries.get(entry.key);
+                    redundantOpCount++;
+                    journal.read(entry.key);
+                }
+            }
         }
+    }
 
-        /**
-         * Returns a new unbuffered output stream to write the value at
-         * {@code index}. If the underlying output stream encounters errors
-         * when writing to the filesystem, this edit will be aborted when
-         * {@link #commit} is called. The returned output stream does not throw
-         * IOExceptions.
-         */
-        public OutputStream newOutputStream(int index) throws IOException {
-            if (index < 0 || index >= valueCount) {
-                throw new IllegalArgumentException("Expected index " + index + " to "
-                        + "be greater than 0 and less than the maximum value count "
-                        + "of " + valueCount);
-            }
-            synchronized (DiskLruCache.this) {
-                if (entry.currentEditor != this) {
-                    throw new IllegalStateException();
+    /**
+     * A segment that keeps its readable entries in an {@link OffHeapIndex}.
+     * Entry objects are created when they are looked up, except for those
+     * being edited, which stay in {@code editing} until the edit completes.
+     *
+     * <p>Reads look entries up while holding the lock, open the files without
+     * it, then check under the lock that no edit was committed meanwhile.
+     */
+    private final class OffHeapSegment extends Segment {
+        /** With a value log, each record holds the lengths and then the locations. */
+        private final OffHeapIndex index =
+                new OffHeapIndex(logValueSize > 0 ? 2 * valueCount : valueCount);
+        private final long[] lengthsAndLocations =
+                logValueSize > 0 ? new long[2 * valueCount] : null;
+
+        @Override Snapshot snapshot(HashedKey key) throws IOException {
+            while (true) {
+                Entry entry;
+                synchronized (this) {
+                    entry = peek(key);
                 }
-                if (!entry.readable) {
-                    written[index] = true;
+                if (entry == null || !entry.readable) {
+                    return null;
                 }
-                File dirtyFile = entry.getDirtyFile(index);
-                FileOutputStream outputStream;
-                try {
-                    outputStream = new FileOutputStream(dirtyFile);
-                } catch (FileNotFoundException e) {
-                    // Attempt to recreate the cache directory.
-                    dirtyFile.getParentFile().mkdirs();
-                    try {
-                        outputStream = new FileOutputStream(dirtyFile);
-                    } catch (FileNotFoundException e2) {
-                        // We are unable to recover. Silently eat the writes.
-                        return NULL_OUTPUT_STREAM;
+                long sequenceNumber = entry.sequenceNumber;
+                long[] lengths = entry.publishedLengths;
+                ByteBuffer[] values = memoryCache != null
+                        ? memoryCache.get(key, sequenceNumber)
+                        : null;
+
+                RegionInputStream[] ins = lazySnapshots || values != null
+                        ? null
+                        : openCleanFiles(entry);
+                boolean compact;
+                synchronized (this) {
+                    // Committing an edit changes the sequence number, and
+                    // compacting the value log moves values.
+                    Entry current = use(key);
+                    if (current == null || current.sequenceNumber != sequenceNumber
+                            || !Arrays.equals(current.locations, entry.locations)) {
+                        if (ins != null) {
+                            closeAll(ins);
+                        }
+                        continue;
                     }
+                    if (ins == null && !lazySnapshots && values == null) {
+                        return null;
+                    }
+                    redundantOpCount++;
+                    journal.read(key);
+                    compact = journalRebuildRequired();
+                }
+                if (compact) {
+                    executorService.submit(cleanupCallable);
+                }
+                if (values != null) {
+                    return memorySnapshot(key, sequenceNumber, values);
+                }
+                if (lazySnapshots) {
+                    return new Snapshot(entry, sequenceNumber, lengths, entry.publishedLocations);
                 }
-                return new FaultHidingOutputStream(outputStream);
+                return snapshotOf(this, key, sequenceNumber, ins, lengths);
             }
         }
 
-        /** Sets the value at {@code index} to {@code value}. */
-        public void set(int index, String value) throws IOException {
-            Writer writer = null;
-            try {
-                writer = new OutputStreamWriter(newOutputStream(index), Util.UTF_8);
-                writer.write(value);
-            } finally {
-                Util.closeQuietly(writer);
+        @Override Stat stat(HashedKey key, boolean touch) throws IOException {
+            Stat stat;
+            boolean compact = false;
+            synchronized (this) {
+                Entry entry = touch ? use(key) : peek(key);
+                if (entry == null || !entry.readable) {
+                    return null;
+                }
+                if (touch) {
+                    redundantOpCount++;
+                    journal.read(key);
+                    compact = journalRebuildRequired();
+                }
+                stat = new Stat(entry.sequenceNumber, entry.publishedLengths,
+                        entry.lastAccessMillis);
+            }
+            if (compact) {
+                executorService.submit(cleanupCallable);
             }
+            return stat;
         }
 
-        /**
-         * Commits this edit so it is visible to readers.  This releases the
-         * edit lock so another edit may be started on the same key.
-         */
-        public void commit() throws IOException {
-            if (hasErrors) {
-                completeEdit(this, false);
-                remove(entry.key); // The previous entry is stale.
-            } else {
-                completeEdit(this, true);
+        @Override boolean isPublished(Entry entry, long sequenceNumber) {
+            synchronized (this) {
+                Entry current = peek(entry.key);
+                return current != null && current.readable
+                        && current.sequenceNumber == sequenceNumber;
             }
-            committed = true;
         }
 
-        /**
-         * Aborts this edit. This releases the edit lock so another edit may be
-         * started on the same key.
-         */
-        public void abort() throws IOException {
-            completeEdit(this, false);
+        @Override Entry get(HashedKey key) {
+            int slot = index.find(key);
+            if (slot != OffHeapIndex.NONE) {
+                index.touch(slot);
+            }
+            return lookUp(key, slot);
         }
 
-        public void abortUnlessCommitted() {
-            if (!committed) {
-                try {
-                    abort();
-                } catch (IOException ignored) {
-                }
+        @Override Entry peek(HashedKey key) {
+            return lookUp(key, index.find(key));
+        }
+
+        @Override void addKeysTo(CountingBloomFilter filter) {
+            for (int slot = index.eldest(); slot != OffHeapIndex.NONE; slot = index.newer(slot)) {
+                filter.add(index.key(slot));
             }
         }
 
-        private class FaultHidingOutputStream extends FilterOutputStream {
-            private FaultHidingOutputStream(OutputStream out) {
-                super(out);
+        /** Like {@link #get}, but also records that the entry was read just now. */
+        private Entry use(HashedKey key) {
+            long now = System.currentTimeMillis();
+            int slot = index.find(key);
+            if (slot != OffHeapIndex.NONE) {
+                index.touch(slot);
+                index.setAccessed(slot, now);
+            }
+            Entry entry = lookUp(key, slot);
+            if (entry != null) {
+                entry.accessed(now);
             }
+            return entry;
+        }
 
-            @Override public void write(int oneByte) {
-                try {
-                    out.write(oneByte);
-                } catch (IOException e) {
-                    hasErrors = true;
+        private Entry lookUp(HashedKey key, int slot) {
+            Entry entry = editing.get(key);
+            if (entry != null || slot == OffHeapIndex.NONE) {
+                return entry;
+            }
+            entry = new Entry(key);
+            entry.sequenceNumber = index.sequenceNumber(slot);
+            entry.lastAccessMillis = index.accessed(slot);
+            for (int i = 0; i < valueCount; i++) {
+                entry.lengths[i] = index.length(slot, i);
+            }
+            for (int i = 0; entry.locations != null && i < valueCount; i++) {
+                entry.locations[i] = index.length(slot, valueCount + i);
+            }
+            entry.publish();
+            return entry;
+        }
+
+        @Override boolean contains(HashedKey key) {
+            return editing.containsKey(key) || index.find(key) != OffHeapIndex.NONE;
+        }
+
+        @Override void put(Entry entry) {
+            // Entries that were never published only live in editing.
+            if (entry.readable) {
+                if (index.find(entry.key) == OffHeapIndex.NONE) {
+                    filterAdd(entry.key);
                 }
+                index.put(entry.key, entry.sequenceNumber, indexed(entry));
+                int slot = index.find(entry.key);
+                index.touch(slot);
+                index.setAccessed(slot, entry.lastAccessMillis);
             }
+        }
 
-            @Override public void write(byte[] buffer, int offset, int length) {
-                try {
-                    out.write(buffer, offset, length);
-                } catch (IOException e) {
-                    hasErrors = true;
+        @Override void update(Entry entry) {
+            if (entry.readable) {
+                if (index.find(entry.key) == OffHeapIndex.NONE) {
+                    filterAdd(entry.key);
                 }
+                index.put(entry.key, entry.sequenceNumber, indexed(entry));
+                index.setAccessed(index.find(entry.key), entry.lastAccessMillis);
             }
+        }
 
-            @Override public void close() {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    hasErrors = true;
+        /** Returns what the index holds for {@code entry}. */
+        private long[] indexed(Entry entry) {
+            if (entry.locations == null) {
+                return entry.lengths;
+            }
+            System.arraycopy(entry.lengths, 0, lengthsAndLocations, 0, valueCount);
+            System.arraycopy(entry.locations, 0, lengthsAndLocations, valueCount, valueCount);
+            return lengthsAndLocations;
+        }
+
+        @Override Entry remove(HashedKey key) {
+            Entry entry = peek(key);
+            if (index.remove(key)) {
+                filterRemove(key);
+            }
+            return entry;
+        }
+
+        @Override int count() {
+            return index.size();
+        }
+
+        @Override HashedKey eldestEvictableKey() {
+            for (int slot = index.eldest(); slot != OffHeapIndex.NONE; slot = index.newer(slot)) {
+                HashedKey key = index.key(slot);
+                if (!editing.containsKey(key)) {
+                    return key;
                 }
             }
+            return null;
+        }
 
-            @Override public void flush() {
-                try {
-                    out.flush();
-                } catch (IOException e) {
-                    hasErrors = true;
+        @Override void removeIn(Set<String> dirNames) {
+            List<HashedKey> keys = new ArrayList<HashedKey>();
+            for (int slot = index.eldest(); slot != OffHeapIndex.NONE; slot = index.newer(slot)) {
+                HashedKey key = index.key(slot);
+                if (dirNames.contains(key.subdirectoryName())) {
+                    keys.add(key);
+                }
+            }
+            for (HashedKey key : keys) {
+                if (peek(key).hasValuesInLog()) {
+                    keptLoggedKeys.add(key);
+                    continue;
                 }
+                Entry entry = remove(key);
+                countLogValues(entry, false);
+                for (long length : entry.lengths) {
+                    size -= length;
+                }
+            }
+        }
+
+        @Override void appendRecords(List<ByteBuffer> chunks) {
+            for (int slot = index.eldest(); slot != OffHeapIndex.NONE; slot = index.newer(slot)) {
+                index.copyTo(slot, recordChunk(chunks));
             }
         }
     }
 
+    /** An entry found by indexing the filesystem, and when it was last used. */
+    private static final class RecoveredEntry {
+        static final Comparator<RecoveredEntry> LEAST_RECENTLY_USED_FIRST =
+                new Comparator<RecoveredEntry>() {
+                    public int compare(RecoveredEntry a, RecoveredEntry b) {
+                        return a.lastUsed < b.lastUsed ? -1 : (a.lastUsed == b.lastUsed ? 0 : 1);
+                    }
+                };
+
+        private final Entry entry;
+        /** Whether a file was found for each value. */
+        private final boolean[] found;
+        private int valueCount;
+        private long lastUsed = Long.MIN_VALUE;
+
+        private RecoveredEntry(Entry entry, int valueCount) {
+            this.entry = entry;
+            this.found = new boolean[valueCount];
+        }
+    }
+
     private final class Entry {
-        private final String key;
-        private final String prefixDir;
+        private final HashedKey key;
+        private final Segment segment;
 
         /** Lengths of this entry's files. */
         private final long[] lengths;
 
+        /**
+         * Where each value is in the value log, or zero for values in files of
+         * their own. Null without a value log.
+         */
+        private final long[] locations;
+
         /** True if this entry has ever been published. */
-        private boolean readable;
+        private volatile boolean readable;
+
+        /**
+         * The lengths of the published values, for readers that don't hold the
+         * segment's lock. Replaced rather than modified.
+         */
+        private volatile long[] publishedLengths;
+        private volatile long[] publishedLocations;
+
+        /**
+         * Incremented before and after an edit's values are published, so it
+         * is odd while the entry's files are being replaced.
+         */
+        private volatile int version;
 
         /** The ongoing edit or null if this entry is not being edited. */
         private Editor currentEditor;
 
         /** The sequence number of the most recently committed edit to this entry. */
-        private long sequenceNumber;
+        private volatile long sequenceNumber;
+
+        /** When this entry was last read or committed, or 0 if unknown. */
+        private volatile long lastAccessMillis;
 
-        private Entry(String key) {
+        private Entry(HashedKey key) {
             this.key = key;
             this.lengths = new long[valueCount];
-            this.prefixDir = key.substring(0, SUBDIR_PREFIX_LENGTH) + File.separator;
+            this.locations = logValueSize > 0 ? new long[valueCount] : null;
+            this.segment = segmentFor(key);
+        }
+
+        /** Makes this entry and its current lengths visible to readers. */
+        private void publish() {
+            if (locations != null) {
+                publishedLocations = locations.clone();
+            }
+            publishedLengths = lengths.clone();
+            readable = true;
+        }
+
+        /** Records a use at {@code millis}, writing only if that changes the time. */
+        private void accessed(long millis) {
+            if (lastAccessMillis != millis) {
+                lastAccessMillis = millis;
+            }
+        }
+
+        /** Returns true if any of the values is in the value log. */
+        private boolean hasValuesInLog() {
+            if (locations == null) {
+                return false;
+            }
+            for (long location : locations) {
+                if (location != 0) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         public String getLengths() throws IOException {
@@ -653,12 +3535,26 @@ public final class DiskLruCache implements Closeable {
             throw new IOException("unexpected journal line: " + java.util.Arrays.toString(strings));
         }
 
+        /** Returns the subdirectory holding this entry's files. */
+        public File getSubdirectory() {
+            return new File(directory, key.subdirectoryName());
+        }
+
         public File getCleanFile(int i) {
-            return new File(directory, prefixDir + key + "." + i);
+            return new File(directory, key.path("." + i));
         }
 
         public File getDirtyFile(int i) {
-            return new File(directory, prefixDir + key + "." + i + ".tmp");
+            return new File(directory, key.path("." + i + ".tmp"));
+        }
+
+        /** Returns the file holding all values, if the cache packs them. */
+        public File getPackedFile() {
+            return new File(directory, key.path(""));
+        }
+
+        public File getPackedDirtyFile() {
+            return new File(directory, key.path(".tmp"));
         }
     }
 }
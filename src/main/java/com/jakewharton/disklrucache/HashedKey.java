@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * The 32 byte hash of a key, held as four longs rather than the 64 hex digit
+ * string that names the entry's files. Hex is only produced when a file path
+ * is built, so the in-memory index holds a small object per entry instead
+ * of two strings.
+ */
+final class HashedKey {
+    private final long a;
+    private final long b;
+    private final long c;
+    private final long d;
+
+    HashedKey(long a, long b, long c, long d) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+    }
+
+    /** Returns the key whose bytes are at {@code offset} in {@code bytes}. */
+    static HashedKey fromBytes(byte[] bytes, int offset) {
+        return new HashedKey(getLong(bytes, offset), getLong(bytes, offset + 8),
+                getLong(bytes, offset + 16), getLong(bytes, offset + 24));
+    }
+
+    /**
+     * Returns the key whose 64 lowercase hex digits start at {@code offset}
+     * in {@code s}, or null if there are no such digits there.
+     */
+    static HashedKey parse(String s, int offset) {
+        if (s.length() - offset < DiskLruCache.HASH_LENGTH * 2) {
+            return null;
+        }
+        long[] longs = new long[4];
+        for (int i = 0; i < longs.length; i++) {
+            long value = 0;
+            for (int j = offset + 16 * i, end = j + 16; j < end; j++) {
+                char ch = s.charAt(j);
+                int digit;
+                if (ch >= '0' && ch <= '9') {
+                    digit = ch - '0';
+                } else if (ch >= 'a' && ch <= 'f') {
+                    digit = ch - 'a' + 10;
+                } else {
+                    return null;
+                }
+                value = value << 4 | digit;
+            }
+            longs[i] = value;
+        }
+        return new HashedKey(longs[0], longs[1], longs[2], longs[3]);
+    }
+
+    /** Returns the hash of {@code key} computed by {@code hasher}. */
+    static HashedKey hash(KeyHasher hasher, String key) {
+        if (hasher instanceof BinaryKeyHasher) {
+            return ((BinaryKeyHasher) hasher).hashKey(key);
+        }
+        String hex = hasher.hash(key);
+        HashedKey result = hex.length() == DiskLruCache.HASH_LENGTH * 2 ? parse(hex, 0) : null;
+        if (result == null) {
+            throw new IllegalStateException(
+                    hasher + " returned " + hex + " rather than 64 lowercase hex digits");
+        }
+        return result;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = value << 8 | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    /** Writes the 32 bytes of this key to {@code out} at {@code offset}. */
+    void toBytes(byte[] out, int offset) {
+        putLong(a, out, offset);
+        putLong(b, out, offset + 8);
+        putLong(c, out, offset + 16);
+        putLong(d, out, offset + 24);
+    }
+
+    private static void putLong(long value, byte[] out, int offset) {
+        for (int i = offset + 7; i >= offset; i--) {
+            out[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /** Returns the key stored as four longs at {@code offset} in {@code buffer}. */
+    static HashedKey get(ByteBuffer buffer, int offset) {
+        return new HashedKey(buffer.getLong(offset), buffer.getLong(offset + 8),
+                buffer.getLong(offset + 16), buffer.getLong(offset + 24));
+    }
+
+    /** Stores this key as four longs at {@code offset} in {@code buffer}. */
+    void put(ByteBuffer buffer, int offset) {
+        buffer.putLong(offset, a);
+        buffer.putLong(offset + 8, b);
+        buffer.putLong(offset + 16, c);
+        buffer.putLong(offset + 24, d);
+    }
+
+    /** Appends this key's 32 bytes to {@code out}. */
+    void writeTo(ByteBuffer out) {
+        out.putLong(a).putLong(b).putLong(c).putLong(d);
+    }
+
+    /** Appends the key stored at {@code offset} in {@code buffer} to {@code out}. */
+    static void copy(ByteBuffer buffer, int offset, ByteBuffer out) {
+        for (int i = 0; i < 32; i += 8) {
+            out.putLong(buffer.getLong(offset + i));
+        }
+    }
+
+    /** Returns true if this key is stored at {@code offset} in {@code buffer}. */
+    boolean isAt(ByteBuffer buffer, int offset) {
+        return d == buffer.getLong(offset + 24)
+                && a == buffer.getLong(offset)
+                && b == buffer.getLong(offset + 8)
+                && c == buffer.getLong(offset + 16);
+    }
+
+    /** Returns the {@link #hashCode} of the key stored at {@code offset} in {@code buffer}. */
+    static int hashCodeAt(ByteBuffer buffer, int offset) {
+        return hashCode(buffer.getLong(offset + 24));
+    }
+
+    /** Returns the second 8 bytes of the hash. */
+    long secondLong() {
+        return b;
+    }
+
+    /** Returns the third 8 bytes of the hash. */
+    long thirdLong() {
+        return c;
+    }
+
+    /** Returns the first byte of the hash, which picks the subdirectory. */
+    int prefix() {
+        return (int) (a >>> 56);
+    }
+
+    /** Returns the name of the subdirectory holding this key's files. */
+    String subdirectoryName() {
+        int pair = prefix() << 1;
+        return new String(Util.HEX_PAIRS, pair, 2);
+    }
+
+    /**
+     * Returns the path of this key's file with {@code suffix}, relative to
+     * the cache directory: {@code <prefix>/<hex><suffix>}.
+     */
+    String path(String suffix) {
+        char[] path = new char[3 + DiskLruCache.HASH_LENGTH * 2 + suffix.length()];
+        int pair = prefix() << 1;
+        path[0] = Util.HEX_PAIRS[pair];
+        path[1] = Util.HEX_PAIRS[pair + 1];
+        path[2] = File.separatorChar;
+        writeHex(path, 3);
+        suffix.getChars(0, suffix.length(), path, 3 + DiskLruCache.HASH_LENGTH * 2);
+        return new String(path);
+    }
+
+    private void writeHex(char[] out, int offset) {
+        writeHex(a, out, offset);
+        writeHex(b, out, offset + 16);
+        writeHex(c, out, offset + 32);
+        writeHex(d, out, offset + 48);
+    }
+
+    private static void writeHex(long value, char[] out, int offset) {
+        for (int i = offset + 14; i >= offset; i -= 2) {
+            int pair = ((int) value & 0xff) << 1;
+            out[i] = Util.HEX_PAIRS[pair];
+            out[i + 1] = Util.HEX_PAIRS[pair + 1];
+            value >>>= 8;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof HashedKey)) {
+            return false;
+        }
+        HashedKey other = (HashedKey) o;
+        return a == other.a && b == other.b && c == other.c && d == other.d;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode(d);
+    }
+
+    private static int hashCode(long d) {
+        // The bits are already uniformly distributed.
+        return (int) (d ^ (d >>> 32));
+    }
+
+    /** Returns the 64 lowercase hex digits of this key. */
+    @Override
+    public String toString() {
+        char[] hex = new char[DiskLruCache.HASH_LENGTH * 2];
+        writeHex(hex, 0);
+        return new String(hex);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * An append-only binary log of cache operations. Each journal belongs to a
+ * generation: the index written with generation {@code n} holds the state of
+ * the cache at the moment journal {@code n} was started, so replaying the
+ * index followed by every journal with generation {@code >= n} restores the
+ * cache.
+ *
+ * <p>The file begins with a header:
+ * <pre>
+ *     int      magic
+ *     int      version
+ *     int      value count
+ *     long     generation
+ * </pre>
+ * followed by records. Each record is an operation byte and a 32 byte hashed
+ * key; CLEAN records also carry the sequence number and value lengths, and in
+ * caches with a {@link ValueLog} the value locations.
+ * <ul>
+ * <li>CLEAN lines track a cache entry that has been successfully published
+ * and may be read.
+ * <li>DIRTY lines track that an entry is actively being created or updated.
+ * Every successful DIRTY action should be followed by a CLEAN or REMOVE
+ * action. DIRTY lines without a matching CLEAN or REMOVE indicate that
+ * temporary files may need to be deleted.
+ * <li>REMOVE lines track entries that have been deleted.
+ * <li>READ lines track accesses for LRU.
+ * </ul>
+ *
+ * <p>Records are buffered and written in groups: when the buffer fills, on
+ * the next record appended at least {@link #JOURNAL_FLUSH_INTERVAL_MILLIS}
+ * after the last flush, or when the journal is explicitly flushed. An idle
+ * journal keeps its buffered records until then. Records lost in a crash
+ * are recovered by the cache re-indexing subdirectories modified after the
+ * journal was last written.
+ */
+final class Journal implements Closeable {
+    static final String JOURNAL_FILE_PREFIX = "journal-";
+    static final int MAGIC = 0x444c524a; // "DLRJ"
+    static final int VERSION = 1;
+    static final int BUFFER_SIZE = 8192;
+    static final long JOURNAL_FLUSH_INTERVAL_MILLIS = 1000;
+
+    static final byte CLEAN = 1;
+    static final byte DIRTY = 2;
+    static final byte REMOVE = 3;
+    static final byte READ = 4;
+
+    /**
+     * Receives the records of a journal as it is replayed. The arrays passed
+     * to {@link #clean} are reused between records; the locations are null
+     * unless the journal records them.
+     */
+    interface Handler {
+        void clean(HashedKey key, long sequenceNumber, long[] lengths, long[] locations);
+
+        void dirty(HashedKey key);
+
+        void remove(HashedKey key);
+
+        void read(HashedKey key);
+    }
+
+    private final File file;
+    private final long generation;
+    private final DataOutputStream out;
+    private final byte[] keyBytes = new byte[DiskLruCache.HASH_LENGTH];
+    private long lastFlushMillis;
+    private boolean closed;
+
+    private Journal(File file, long generation, DataOutputStream out) {
+        this.file = file;
+        this.generation = generation;
+        this.out = out;
+        this.lastFlushMillis = System.currentTimeMillis();
+    }
+
+    /** Creates a new, empty journal for {@code generation} in {@code directory}. */
+    static Journal create(File directory, int valueCount, long generation) throws IOException {
+        File file = fileFor(directory, generation);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(valueCount);
+        out.writeLong(generation);
+        out.flush();
+        return new Journal(file, generation, out);
+    }
+
+    /** Returns the journal file for {@code generation} in {@code directory}. */
+    static File fileFor(File directory, long generation) {
+        return new File(directory, JOURNAL_FILE_PREFIX + generation);
+    }
+
+    /**
+     * Returns the generation of a journal file named {@code name}, or -1 if
+     * the name is not that of a journal.
+     */
+    static long generationOf(String name) {
+        if (!name.startsWith(JOURNAL_FILE_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(JOURNAL_FILE_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    /** Records a published entry. {@code locations} is null without a value log. */
+    synchronized void clean(HashedKey key, long sequenceNumber, long[] lengths, long[] locations)
+            throws IOException {
+        if (writeRecord(CLEAN, key)) {
+            out.writeLong(sequenceNumber);
+            for (long length : lengths) {
+                out.writeLong(length);
+            }
+            if (locations != null) {
+                for (long location : locations) {
+                    out.writeLong(location);
+                }
+            }
+            flushIfDue();
+        }
+    }
+
+    synchronized void dirty(HashedKey key) throws IOException {
+        if (writeRecord(DIRTY, key)) {
+            flushIfDue();
+        }
+    }
+
+    synchronized void remove(HashedKey key) throws IOException {
+        if (writeRecord(REMOVE, key)) {
+            flushIfDue();
+        }
+    }
+
+    synchronized void read(HashedKey key) throws IOException {
+        if (writeRecord(READ, key)) {
+            flushIfDue();
+        }
+    }
+
+    /**
+     * Writes the operation and key of a record. Returns false if nothing was
+     * written because the journal is closed.
+     */
+    private boolean writeRecord(byte op, HashedKey key) throws IOException {
+        if (closed) {
+            return false;
+        }
+        key.toBytes(keyBytes, 0);
+        out.writeByte(op);
+        out.write(keyBytes);
+        return true;
+    }
+
+    private void flushIfDue() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastFlushMillis >= JOURNAL_FLUSH_INTERVAL_MILLIS) {
+            out.flush();
+            lastFlushMillis = now;
+        }
+    }
+
+    /** Writes all buffered records to the file. */
+    synchronized void flush() throws IOException {
+        if (!closed) {
+            out.flush();
+            lastFlushMillis = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * Replays the records of {@code file} into {@code handler}. Replay stops
+     * quietly at a truncated or corrupt record, which is what a crash while
+     * appending leaves behind. CLEAN records carry locations if
+     * {@code withLocations}.
+     *
+     * @return the number of records replayed, or -1 if the file is not a
+     *     journal for {@code generation} with {@code valueCount} values.
+     */
+    static int replay(File file, int valueCount, boolean withLocations, long generation,
+            Handler handler) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        try {
+            try {
+                if (in.readInt() != MAGIC
+                        || in.readInt() != VERSION
+                        || in.readInt() != valueCount
+                        || in.readLong() != generation) {
+                    return -1;
+                }
+            } catch (EOFException e) {
+                return -1;
+            }
+            int count = 0;
+            byte[] hash = new byte[DiskLruCache.HASH_LENGTH];
+            long[] lengths = new long[valueCount];
+            long[] locations = withLocations ? new long[valueCount] : null;
+            try {
+                while (true) {
+                    int op = in.read();
+                    if (op == -1) {
+                        break;
+                    }
+                    in.readFully(hash);
+                    HashedKey key = HashedKey.fromBytes(hash, 0);
+                    if (op == CLEAN) {
+                        long sequenceNumber = in.readLong();
+                        for (int i = 0; i < valueCount; i++) {
+                            lengths[i] = in.readLong();
+                        }
+                        for (int i = 0; withLocations && i < valueCount; i++) {
+                            locations[i] = in.readLong();
+                        }
+                        handler.clean(key, sequenceNumber, lengths, locations);
+                    } else if (op == DIRTY) {
+                        handler.dirty(key);
+                    } else if (op == REMOVE) {
+                        handler.remove(key);
+                    } else if (op == READ) {
+                        handler.read(key);
+                    } else {
+                        break; // Corrupt record.
+                    }
+                    count++;
+                }
+            } catch (EOFException ignored) {
+                // Truncated record.
+            }
+            return count;
+        } finally {
+            Util.closeQuietly(in);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+/**
+ * Hashes the keys of a {@link DiskLruCache} into the names of their files.
+ * A hashed key is 64 lowercase hex digits; its first two digits name the
+ * subdirectory holding the entry's files.
+ *
+ * <p>A cache directory records the {@link #name} of the hasher it was created
+ * with, and refuses to open with another one, since its files would no longer
+ * be found under their keys.
+ */
+public interface KeyHasher {
+    /**
+     * Hashes keys with SHA-256. This is the default, and the hasher of cache
+     * directories that predate the choice of hasher.
+     */
+    KeyHasher SHA_256 = new Sha256KeyHasher();
+
+    /**
+     * Hashes keys with the 128-bit variant of MurmurHash3, which is faster
+     * than SHA-256, especially on processors without SHA instructions. It is
+     * not a cryptographic hash, so only use it if keys cannot be chosen to
+     * collide on purpose.
+     */
+    KeyHasher MURMUR3_128 = new Murmur3KeyHasher();
+
+    /**
+     * Returns the name recorded in the cache directory. Must be a short
+     * single line of text that differs from that of any other hasher.
+     */
+    String name();
+
+    /** Returns the hash of {@code key} as 64 lowercase hex digits. */
+    String hash(String key);
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+
+/**
+ * A load of a missing entry by {@link DiskLruCache#getOrLoad}, which callers
+ * that miss the same key wait for instead of loading the entry again.
+ *
+ * <p>The loading editor records here where each value is being written and
+ * how many bytes have been written, so waiters can follow a value in its dirty
+ * file before the edit commits. A committed value keeps the bytes its dirty
+ * file had, and a follower's open file outlives the commit renaming or
+ * deleting it, so followers keep reading the file they opened until the end.
+ * Dirty files are only opened until the values are sealed for the commit;
+ * after that their names may belong to the next edit's files.
+ */
+final class Load {
+    /** The file each value is being written to, or null until it is started. */
+    private final File[] files;
+    /** Where each value starts in its file. */
+    private final long[] offsets;
+    /** The number of bytes of each value written so far. */
+    private final long[] lengths;
+    /** Counts the starts of each value, so followers notice it being rewritten. */
+    private final int[] generations;
+    /** True once no more values will be written. */
+    private boolean sealed;
+    private boolean done;
+    private Throwable failure;
+
+    Load(int valueCount) {
+        this.files = new File[valueCount];
+        this.offsets = new long[valueCount];
+        this.lengths = new long[valueCount];
+        this.generations = new int[valueCount];
+    }
+
+    /** Records that the value at {@code index} is being written to {@code file}. */
+    synchronized void start(int index, File file, long offset) {
+        files[index] = file;
+        offsets[index] = offset;
+        lengths[index] = 0;
+        generations[index]++;
+        notifyAll();
+    }
+
+    /** Records that {@code count} more bytes of the value at {@code index} were written. */
+    synchronized void wrote(int index, long count) {
+        lengths[index] += count;
+        notifyAll();
+    }
+
+    /**
+     * Records that all values have been written, before the edit is
+     * committed.
+     */
+    synchronized void seal() {
+        sealed = true;
+    }
+
+    /**
+     * Records that the load is over. It failed if {@code failure} is
+     * non-null; otherwise its edit was committed, or never started.
+     */
+    synchronized void finish(Throwable failure) {
+        this.sealed = true;
+        this.done = true;
+        this.failure = failure;
+        notifyAll();
+    }
+
+    /** Waits for the load to finish, and throws if it failed. */
+    synchronized void await() throws IOException {
+        while (!done) {
+            waitForProgress();
+        }
+        checkSucceeded();
+    }
+
+    private void waitForProgress() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void checkSucceeded() throws IOException {
+        if (failure != null) {
+            throw new IOException("loading the entry failed", failure);
+        }
+    }
+
+    /**
+     * Returns a stream that follows the value at {@code index} as it is
+     * written and ends once the edit commits. If the value isn't being
+     * written by the time the load finishes, the stream reads the stream
+     * {@code committed} returns instead, or throws FileNotFoundException if
+     * that is null.
+     */
+    InputStream newInputStream(int index, Callable<InputStream> committed) {
+        return new Follower(index, committed);
+    }
+
+    private final class Follower extends InputStream {
+        private final int index;
+        private final Callable<InputStream> committed;
+        /** The dirty file being followed, or null. */
+        private FileInputStream file;
+        private int generation;
+        /** The number of bytes of the value read from the file. */
+        private long position;
+        /** True if the dirty file couldn't be followed, so the committed value is read. */
+        private boolean missed;
+        /** The committed value, once the load finished without this following it. */
+        private InputStream delegate;
+        private boolean closed;
+
+        private Follower(int index, Callable<InputStream> committed) {
+            this.index = index;
+            this.committed = committed;
+        }
+
+        @Override public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = read(b, 0, 1);
+            return count == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("closed");
+            }
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (delegate != null) {
+                    return delegate.read(b, off, len);
+                }
+                File toOpen = null;
+                long at = 0;
+                int count = 0;
+                synchronized (Load.this) {
+                    if (file == null) {
+                        if (done) {
+                            checkSucceeded();
+                        } else if (files[index] != null && !sealed && !missed) {
+                            toOpen = files[index];
+                            generation = generations[index];
+                        } else {
+                            waitForProgress();
+                            continue;
+                        }
+                    } else {
+                        if (generations[index] != generation) {
+                            if (position > 0) {
+                                throw new IOException("value was rewritten while it was read");
+                            }
+                            Util.closeQuietly(file); // Nothing read yet; follow the new copy.
+                            file = null;
+                            continue;
+                        }
+                        long available = lengths[index] - position;
+                        if (available > 0) {
+                            at = offsets[index] + position;
+                            count = (int) Math.min(len, available);
+                        } else if (done) {
+                            checkSucceeded();
+                            return -1;
+                        } else {
+                            waitForProgress();
+                            continue;
+                        }
+                    }
+                }
+                if (count > 0) {
+                    return readFile(b, off, count, at);
+                }
+                if (toOpen != null) {
+                    openFile(toOpen);
+                } else {
+                    openCommitted();
+                }
+            }
+        }
+
+        private void openFile(File toOpen) {
+            FileInputStream in;
+            try {
+                in = new FileInputStream(toOpen);
+            } catch (FileNotFoundException e) {
+                missed = true;
+                return;
+            }
+            synchronized (Load.this) {
+                if (sealed) {
+                    // It may have been renamed and replaced before it was opened.
+                    missed = true;
+                } else {
+                    file = in;
+                    return;
+                }
+            }
+            Util.closeQuietly(in);
+        }
+
+        private int readFile(byte[] b, int off, int count, long at) throws IOException {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, count);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, at + buffer.position() - off) == -1) {
+                    throw new EOFException("value was truncated while it was read");
+                }
+            }
+            position += count;
+            return count;
+        }
+
+        private void openCommitted() throws IOException {
+            InputStream in;
+            try {
+                in = committed.call();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            if (in == null) {
+                throw new FileNotFoundException("loaded entry is no longer readable");
+            }
+            delegate = in;
+        }
+
+        @Override public void close() throws IOException {
+            closed = true;
+            Util.closeQuietly(file);
+            Util.closeQuietly(delegate);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the values of small, recently read entries in memory, each tagged
+ * with the sequence number it was committed as. A lookup only hits if that
+ * matches the entry's current sequence number, so an item left behind by a
+ * later commit is never returned, only evicted.
+ *
+ * <p>Lookups don't lock. Items are evicted in approximately LRU order by the
+ * CLOCK algorithm: a lookup marks an item as referenced, and eviction sweeps
+ * the items, sparing and unmarking the referenced ones.
+ */
+final class MemoryCache {
+    private final ConcurrentHashMap<HashedKey, Item> items =
+            new ConcurrentHashMap<HashedKey, Item>();
+    private final long maxSize;
+    private final boolean direct;
+    /** Guarded by this. */
+    private long size;
+    /** The eviction sweep's position. Guarded by this. */
+    private Iterator<Item> hand;
+
+    /**
+     * @param maxSize the maximum number of bytes of values to hold
+     * @param direct true to hold values in direct buffers, outside the Java
+     *     heap
+     */
+    MemoryCache(long maxSize, boolean direct) {
+        this.maxSize = maxSize;
+        this.direct = direct;
+    }
+
+    /** Returns a buffer to hold a value of {@code length} bytes. */
+    ByteBuffer allocate(int length) {
+        return direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+    }
+
+    /**
+     * Returns the values committed as {@code sequenceNumber} for {@code key},
+     * or null. The buffers must not be modified.
+     */
+    ByteBuffer[] get(HashedKey key, long sequenceNumber) {
+        Item item = items.get(key);
+        if (item == null || item.sequenceNumber != sequenceNumber) {
+            return null;
+        }
+        if (!item.referenced) {
+            item.referenced = true;
+        }
+        return item.values;
+    }
+
+    /**
+     * Holds {@code values}, which were committed as {@code sequenceNumber}
+     * for {@code key}, evicting other items to make room.
+     */
+    synchronized void put(HashedKey key, long sequenceNumber, ByteBuffer[] values) {
+        long length = 0;
+        for (ByteBuffer value : values) {
+            length += value.remaining();
+        }
+        if (length > maxSize) {
+            return;
+        }
+        Item previous = items.put(key, new Item(key, sequenceNumber, values, length));
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += length;
+        while (size > maxSize) {
+            evictOne();
+        }
+    }
+
+    /** Drops the values of {@code key}, if any. */
+    synchronized void remove(HashedKey key) {
+        Item item = items.remove(key);
+        if (item != null) {
+            size -= item.size;
+        }
+    }
+
+    /** Returns the number of bytes of values held. */
+    synchronized long size() {
+        return size;
+    }
+
+    private void evictOne() {
+        while (true) {
+            if (hand == null || !hand.hasNext()) {
+                hand = items.values().iterator();
+            }
+            Item item = hand.next();
+            if (item.referenced) {
+                item.referenced = false; // A second chance.
+            } else if (items.remove(item.key, item)) {
+                // The sweep may return an item that was replaced since.
+                size -= item.size;
+                return;
+            }
+        }
+    }
+
+    private static final class Item {
+        private final HashedKey key;
+        private final long sequenceNumber;
+        private final ByteBuffer[] values;
+        private final long size;
+        private volatile boolean referenced;
+
+        private Item(HashedKey key, long sequenceNumber, ByteBuffer[] values, long size) {
+            this.key = key;
+            this.sequenceNumber = sequenceNumber;
+            this.values = values;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+/**
+ * Hashes the UTF-8 bytes of keys with the x64 128-bit variant of MurmurHash3.
+ * A hashed key takes 256 bits. The first 128 are the hash with seed 0,
+ * written as its bytes in little-endian order, which is what
+ * {@code Hashing.murmur3_128().hashString(key, UTF_8)} prints in Guava. The
+ * other 128 are derived from it by running each half through MurmurHash3's
+ * finalizer again with a distinct constant, so each key is hashed once. They
+ * only fill out the file name and add no collision resistance.
+ */
+final class Murmur3KeyHasher implements BinaryKeyHasher {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    /** Mixed into the halves of the hash to derive the last 128 bits. */
+    private static final long C3 = 0x9e3779b97f4a7c15L;
+    private static final long C4 = 0xc2b2ae3d27d4eb4fL;
+
+    public String name() {
+        return "murmur3-128";
+    }
+
+    public String hash(String key) {
+        return hashKey(key).toString();
+    }
+
+    public HashedKey hashKey(String key) {
+        byte[] bytes = key.getBytes(Util.UTF_8);
+        long[] hash = new long[2];
+        murmur3(bytes, bytes.length, 0, hash);
+        return new HashedKey(Long.reverseBytes(hash[0]), Long.reverseBytes(hash[1]),
+                fmix64(hash[0] ^ C3), fmix64(hash[1] ^ C4));
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    /**
+     * Stores the MurmurHash3_x64_128 of the first {@code length} bytes of
+     * {@code data} with the 32-bit {@code seed} in {@code out}.
+     */
+    static void murmur3(byte[] data, int length, int seed, long[] out) {
+        long h1 = seed & 0xffffffffL;
+        long h2 = h1;
+        int blockEnd = length & ~15;
+        for (int i = 0; i < blockEnd; i += 16) {
+            long k1 = getLongLittleEndian(data, i);
+            long k2 = getLongLittleEndian(data, i + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int remaining = length - blockEnd;
+        if (remaining > 0) {
+            long k1 = 0;
+            long k2 = 0;
+            for (int i = remaining - 1; i >= 8; i--) {
+                k2 = (k2 << 8) | (data[blockEnd + i] & 0xff);
+            }
+            for (int i = Math.min(remaining, 8) - 1; i >= 0; i--) {
+                k1 = (k1 << 8) | (data[blockEnd + i] & 0xff);
+            }
+            if (remaining > 8) {
+                h2 ^= mixK2(k2);
+            }
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        out[0] = h1;
+        out[1] = h2;
+    }
+
+    private static long getLongLittleEndian(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+                | (data[offset + 1] & 0xffL) << 8
+                | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24
+                | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
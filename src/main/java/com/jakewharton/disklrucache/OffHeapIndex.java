@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A hash table of entries kept in a direct byte buffer rather than as
+ * objects, so that it costs a fixed number of bytes per entry and is
+ * invisible to the garbage collector. Each record holds the hashed key,
+ * sequence number, last access time and value lengths of a readable entry,
+ * and links to the records used just before and after it.
+ *
+ * <p>Records are found by linear probing and are moved back into the gap
+ * left by a removal instead of leaving tombstones. The links form a doubly
+ * linked list from the least to the most recently used record. Records are
+ * addressed by slot number, which changes when the table grows or a record
+ * is moved, so slots are only valid until the next modification.
+ *
+ * <p>Not thread safe; the owning segment's lock guards it.
+ */
+final class OffHeapIndex {
+    private static final int KEY = 0;
+    /** The sequence number plus one, or 0 if the slot is empty. */
+    private static final int SEQUENCE = 32;
+    private static final int OLDER = 40;
+    private static final int NEWER = 44;
+    private static final int ACCESSED = 48;
+    private static final int LENGTHS = 56;
+
+    static final int NONE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private final int valueCount;
+    private final int recordSize;
+    private ByteBuffer table;
+    private int mask;
+    private int size;
+    private int eldest = NONE;
+    private int newest = NONE;
+
+    OffHeapIndex(int valueCount) {
+        this.valueCount = valueCount;
+        this.recordSize = LENGTHS + 8 * valueCount;
+        this.table = allocate(MIN_CAPACITY);
+        this.mask = MIN_CAPACITY - 1;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        if ((long) capacity * recordSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException(
+                    "too many entries for one segment; use more segments: " + size);
+        }
+        return ByteBuffer.allocateDirect(capacity * recordSize).order(ByteOrder.nativeOrder());
+    }
+
+    /** Returns the number of entries. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the slot of the least recently used entry, or {@link #NONE}. */
+    int eldest() {
+        return eldest;
+    }
+
+    /** Returns the slot of the entry used after the one in {@code slot}, or {@link #NONE}. */
+    int newer(int slot) {
+        return table.getInt(slot * recordSize + NEWER);
+    }
+
+    /** Returns the slot holding {@code key}, or {@link #NONE}. */
+    int find(HashedKey key) {
+        for (int slot = key.hashCode() & mask; ; slot = (slot + 1) & mask) {
+            int offset = slot * recordSize;
+            if (table.getLong(offset + SEQUENCE) == 0) {
+                return NONE;
+            }
+            if (key.isAt(table, offset + KEY)) {
+                return slot;
+            }
+        }
+    }
+
+    HashedKey key(int slot) {
+        return HashedKey.get(table, slot * recordSize + KEY);
+    }
+
+    long sequenceNumber(int slot) {
+        return table.getLong(slot * recordSize + SEQUENCE) - 1;
+    }
+
+    /** Returns when the entry in {@code slot} was last used, in milliseconds. */
+    long accessed(int slot) {
+        return table.getLong(slot * recordSize + ACCESSED);
+    }
+
+    void setAccessed(int slot, long millis) {
+        table.putLong(slot * recordSize + ACCESSED, millis);
+    }
+
+    long length(int slot, int index) {
+        return table.getLong(slot * recordSize + LENGTHS + 8 * index);
+    }
+
+    /**
+     * Stores the sequence number and lengths of {@code key}. A new key becomes
+     * the most recently used; an existing one keeps its place.
+     */
+    void put(HashedKey key, long sequenceNumber, long[] lengths) {
+        int slot = find(key);
+        if (slot == NONE) {
+            if (size + 1 > (mask + 1) / 4 * 3) {
+                resize((mask + 1) * 2);
+            }
+            slot = key.hashCode() & mask;
+            while (table.getLong(slot * recordSize + SEQUENCE) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            key.put(table, slot * recordSize + KEY);
+            table.putLong(slot * recordSize + ACCESSED, 0);
+            linkAsNewest(slot);
+            size++;
+        }
+        int offset = slot * recordSize;
+        table.putLong(offset + SEQUENCE, sequenceNumber + 1);
+        for (int i = 0; i < valueCount; i++) {
+            table.putLong(offset + LENGTHS + 8 * i, lengths[i]);
+        }
+    }
+
+    /** Makes the entry in {@code slot} the most recently used. */
+    void touch(int slot) {
+        if (slot != newest) {
+            unlink(slot);
+            linkAsNewest(slot);
+        }
+    }
+
+    /** Removes {@code key}, returning false if it wasn't present. */
+    boolean remove(HashedKey key) {
+        int hole = find(key);
+        if (hole == NONE) {
+            return false;
+        }
+        unlink(hole);
+        // Move later records of the same probe run back into the hole, so
+        // that lookups never stop early at it.
+        for (int slot = (hole + 1) & mask; ; slot = (slot + 1) & mask) {
+            int offset = slot * recordSize;
+            if (table.getLong(offset + SEQUENCE) == 0) {
+                break;
+            }
+            int home = HashedKey.hashCodeAt(table, offset + KEY) & mask;
+            boolean homeBetween = hole <= slot
+                    ? hole < home && home <= slot
+                    : hole < home || home <= slot;
+            if (!homeBetween) {
+                move(slot, hole);
+                hole = slot;
+            }
+        }
+        table.putLong(hole * recordSize + SEQUENCE, 0);
+        size--;
+        return true;
+    }
+
+    /**
+     * Appends the record in {@code slot} to {@code out} in the index file's
+     * format: the key, the sequence number and the lengths.
+     */
+    void copyTo(int slot, ByteBuffer out) {
+        int offset = slot * recordSize;
+        HashedKey.copy(table, offset + KEY, out);
+        out.putLong(sequenceNumber(slot));
+        for (int i = 0; i < valueCount; i++) {
+            out.putLong(table.getLong(offset + LENGTHS + 8 * i));
+        }
+    }
+
+    private void move(int from, int to) {
+        int fromOffset = from * recordSize;
+        int toOffset = to * recordSize;
+        for (int i = 0; i < recordSize; i += 8) {
+            table.putLong(toOffset + i, table.getLong(fromOffset + i));
+        }
+        int older = table.getInt(toOffset + OLDER);
+        int newer = table.getInt(toOffset + NEWER);
+        if (older == NONE) {
+            eldest = to;
+        } else {
+            table.putInt(older * recordSize + NEWER, to);
+        }
+        if (newer == NONE) {
+            newest = to;
+        } else {
+            table.putInt(newer * recordSize + OLDER, to);
+        }
+    }
+
+    private void unlink(int slot) {
+        int offset = slot * recordSize;
+        int older = table.getInt(offset + OLDER);
+        int newer = table.getInt(offset + NEWER);
+        if (older == NONE) {
+            eldest = newer;
+        } else {
+            table.putInt(older * recordSize + NEWER, newer);
+        }
+        if (newer == NONE) {
+            newest = older;
+        } else {
+            table.putInt(newer * recordSize + OLDER, older);
+        }
+    }
+
+    private void linkAsNewest(int slot) {
+        int offset = slot * recordSize;
+        table.putInt(offset + OLDER, newest);
+        table.putInt(offset + NEWER, NONE);
+        if (newest == NONE) {
+            eldest = slot;
+        } else {
+            table.putInt(newest * recordSize + NEWER, slot);
+        }
+        newest = slot;
+    }
+
+    /** Moves the records to a table of {@code capacity} slots, keeping their order. */
+    private void resize(int capacity) {
+        ByteBuffer oldTable = table;
+        int oldEldest = eldest;
+        table = allocate(capacity);
+        mask = capacity - 1;
+        eldest = NONE;
+        newest = NONE;
+        for (int from = oldEldest; from != NONE; ) {
+            int fromOffset = from * recordSize;
+            int slot = HashedKey.hashCodeAt(oldTable, fromOffset + KEY) & mask;
+            while (table.getLong(slot * recordSize + SEQUENCE) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            int toOffset = slot * recordSize;
+            for (int i = 0; i < recordSize; i += 8) {
+                table.putLong(toOffset + i, oldTable.getLong(fromOffset + i));
+            }
+            linkAsNewest(slot);
+            from = oldTable.getInt(fromOffset + NEWER);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads and writes the files of caches that keep all values of an entry in a
+ * single file; see {@link DiskLruCache.Options#setPackedValues}. The file
+ * starts with a header holding the position and length of each value, as
+ * big-endian longs, followed by the values:
+ *
+ *     long     offset of value 0
+ *     long     length of value 0
+ *     ...
+ *     long     offset of value valueCount - 1
+ *     long     length of value valueCount - 1
+ *     byte[]   values
+ *
+ * <p>Values are stored in the order they were written, so the header is the
+ * only way to find them. Readers open the file once and read each value with
+ * positional reads, so the streams of a snapshot share one file descriptor.
+ */
+final class PackedValues {
+    private PackedValues() {
+    }
+
+    /** Returns the length of the header for {@code valueCount} values. */
+    static int headerLength(int valueCount) {
+        return 16 * valueCount;
+    }
+
+    /**
+     * Returns the offset and length of each value of the packed file open in
+     * {@code channel}, interleaved.
+     *
+     * @throws IOException if the header is truncated or describes values
+     *     outside the file.
+     */
+    static long[] readHeader(FileChannel channel, int valueCount) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength(valueCount));
+        readFully(channel, buffer, 0);
+        buffer.flip();
+        long fileLength = channel.size();
+        long[] header = new long[2 * valueCount];
+        for (int i = 0; i < header.length; i += 2) {
+            long offset = buffer.getLong();
+            long length = buffer.getLong();
+            if (offset < headerLength(valueCount) || length < 0
+                    || length > fileLength - offset) {
+                throw new IOException("corrupt packed file: value " + (i / 2)
+                        + " at " + offset + " with length " + length);
+            }
+            header[i] = offset;
+            header[i + 1] = length;
+        }
+        return header;
+    }
+
+    /**
+     * Returns the length of each value of the packed file {@code file}.
+     *
+     * @throws IOException if the file is missing or corrupt.
+     */
+    static long[] readLengths(File file, int valueCount) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            long[] header = readHeader(channel, valueCount);
+            long[] lengths = new long[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                lengths[i] = header[2 * i + 1];
+            }
+            return lengths;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Opens a stream of each value of the packed file {@code file}. The file
+     * is closed once all of the streams are.
+     *
+     * @throws java.io.FileNotFoundException if the file is missing.
+     * @throws IOException if the file is corrupt.
+     */
+    static RegionInputStream[] open(File file, int valueCount) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            long[] header = readHeader(channel, valueCount);
+            SharedChannel shared = new SharedChannel(channel, valueCount);
+            RegionInputStream[] ins = new RegionInputStream[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                ins[i] = new RegionInputStream(channel, header[2 * i], header[2 * i + 1], shared);
+            }
+            return ins;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a stream of the value at {@code index} of the packed file
+     * {@code file}.
+     *
+     * @throws java.io.FileNotFoundException if the file is missing.
+     * @throws IOException if the file is corrupt.
+     */
+    static InputStream open(File file, int valueCount, int index) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            long[] header = readHeader(channel, valueCount);
+            return new RegionInputStream(channel, header[2 * index], header[2 * index + 1],
+                    channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    /** A file shared by several streams, closed when the last of them is. */
+    private static final class SharedChannel implements Closeable {
+        private final FileChannel channel;
+        private final AtomicInteger openCount;
+
+        private SharedChannel(FileChannel channel, int openCount) {
+            this.channel = channel;
+            this.openCount = new AtomicInteger(openCount);
+        }
+
+        /** Called by each stream as it is closed. */
+        public void close() {
+            if (openCount.decrementAndGet() == 0) {
+                Util.closeQuietly(channel);
+            }
+        }
+    }
+
+    /**
+     * Writes the values of an edit to a new packed file. Values are appended
+     * in the order their streams are opened, so only one stream can be open
+     * at a time.
+     */
+    static final class Writer {
+        private final int valueCount;
+        private final FileChannel channel;
+        private final long[] header;
+        private final boolean[] written;
+        private long position;
+        /** The index of the value being written, or -1. */
+        private int writing = -1;
+        private long writingOffset;
+
+        /**
+         * @throws java.io.FileNotFoundException if {@code file} cannot be
+         *     created.
+         */
+        Writer(File file, int valueCount) throws IOException {
+            this.valueCount = valueCount;
+            this.channel = new FileOutputStream(file).getChannel();
+            this.header = new long[2 * valueCount];
+            this.written = new boolean[valueCount];
+            this.position = headerLength(valueCount);
+            // Reserve the header, so values can be transferred after it.
+            ByteBuffer buffer = ByteBuffer.allocate(headerLength(valueCount));
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, buffer.position());
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /** Returns the offset in the file at which the next value starts. */
+        long position() {
+            return position;
+        }
+
+        /**
+         * Returns a stream that appends the value at {@code index}. Writing a
+         * value again leaves the earlier copy unused in the file.
+         *
+         * @throws IllegalStateException if the stream of another value is
+         *     still open.
+         */
+        OutputStream newOutputStream(final int index) {
+            if (writing != -1) {
+                throw new IllegalStateException("the stream of value " + writing
+                        + " must be closed before writing value " + index);
+            }
+            writing = index;
+            writingOffset = position;
+            return new OutputStream() {
+                private boolean closed;
+
+                @Override public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override public void write(byte[] b, int off, int len) throws IOException {
+                    if (closed) {
+                        throw new IOException("closed");
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                }
+
+                @Override public void close() {
+                    if (!closed) {
+                        closed = true;
+                        endValue();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Appends the value at {@code index} from up to {@code count} bytes of
+         * {@code source}, or until its end. Returns the number of bytes
+         * transferred.
+         */
+        long transferFrom(int index, ReadableByteChannel source, long count) throws IOException {
+            OutputStream out = newOutputStream(index);
+            try {
+                long transferred = Util.transferFrom(source, channel, position, count);
+                position += transferred;
+                return transferred;
+            } finally {
+                out.close();
+            }
+        }
+
+        private void endValue() {
+            header[2 * writing] = writingOffset;
+            header[2 * writing + 1] = position - writingOffset;
+            written[writing] = true;
+            writing = -1;
+        }
+
+        /**
+         * Copies the values that weren't written from {@code previous}, the
+         * entry's current packed file or null, then writes the header and
+         * closes the file. Returns the length of each value.
+         */
+        long[] finish(File previous) throws IOException {
+            try {
+                if (writing != -1) {
+                    endValue(); // The caller didn't close its stream.
+                }
+                boolean complete = true;
+                for (boolean w : written) {
+                    complete &= w;
+                }
+                if (!complete && previous != null) {
+                    copyUnwritten(previous);
+                }
+
+                ByteBuffer buffer = ByteBuffer.allocate(headerLength(valueCount));
+                long[] lengths = new long[valueCount];
+                for (int i = 0; i < valueCount; i++) {
+                    buffer.putLong(header[2 * i] != 0 ? header[2 * i] : position);
+                    buffer.putLong(header[2 * i + 1]);
+                    lengths[i] = header[2 * i + 1];
+                }
+                buffer.flip();
+                long at = 0;
+                while (buffer.hasRemaining()) {
+                    at += channel.write(buffer, at);
+                }
+                return lengths;
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void copyUnwritten(File previous) throws IOException {
+            FileChannel source = new FileInputStream(previous).getChannel();
+            try {
+                long[] previousHeader = readHeader(source, valueCount);
+                for (int i = 0; i < valueCount; i++) {
+                    if (written[i]) {
+                        continue;
+                    }
+                    long offset = previousHeader[2 * i];
+                    long length = previousHeader[2 * i + 1];
+                    header[2 * i] = position;
+                    header[2 * i + 1] = length;
+                    channel.position(position);
+                    for (long copied = 0; copied < length; ) {
+                        long transferred = source.transferTo(
+                                offset + copied, length - copied, channel);
+                        if (transferred == 0) {
+                            throw new EOFException(); // The file was truncated.
+                        }
+                        copied += transferred;
+                    }
+                    position += length;
+                }
+            } finally {
+                source.close();
+            }
+        }
+
+        /** Closes the file without finishing it. */
+        void abort() {
+            Util.closeQuietly(channel);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records reads so they can be applied to the LRU order later, in a batch,
+ * instead of each read taking a lock. Readers add to one of several ring
+ * buffers picked by their thread, so they rarely contend with each other.
+ *
+ * <p>The buffer is lossy: a read is dropped when its ring is full or another
+ * reader claims the same slot at the same time. That only makes the LRU order
+ * approximate. Reads are drained by a single thread at a time, which must
+ * hold the lock guarding the LRU order.
+ */
+final class ReadBuffer<E> {
+    static final int RING_SIZE = 16;
+    static final int MAX_RINGS = 16;
+
+    private final Ring<E>[] rings;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ReadBuffer() {
+        int ringCount = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (ringCount < processors && ringCount < MAX_RINGS) {
+            ringCount <<= 1;
+        }
+        rings = new Ring[ringCount];
+        for (int i = 0; i < ringCount; i++) {
+            rings[i] = new Ring<E>();
+        }
+    }
+
+    /**
+     * Records a read of {@code e}. Returns the number of reads waiting in the
+     * reader's ring, or -1 if it is full and the read was not recorded.
+     */
+    int offer(E e) {
+        Ring<E> ring = rings[(int) Thread.currentThread().getId() & (rings.length - 1)];
+        long tail = ring.writeCount.get();
+        if (tail - ring.readCount >= RING_SIZE) {
+            return -1;
+        }
+        if (ring.writeCount.compareAndSet(tail, tail + 1)) {
+            ring.slots.lazySet((int) (tail & (RING_SIZE - 1)), e);
+        }
+        // Dropped if another reader won the slot.
+        return (int) (tail + 1 - ring.readCount);
+    }
+
+    /** Returns true if no reads are waiting to be drained. */
+    boolean isEmpty() {
+        for (Ring<E> ring : rings) {
+            if (ring.writeCount.get() != ring.readCount) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Moves the recorded reads to {@code sink}, oldest first within each ring. */
+    void drainTo(List<E> sink) {
+        for (Ring<E> ring : rings) {
+            long head = ring.readCount;
+            long tail = ring.writeCount.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & (RING_SIZE - 1));
+                E e = ring.slots.get(index);
+                if (e == null) {
+                    break; // Claimed, but not written yet.
+                }
+                ring.slots.lazySet(index, null);
+                sink.add(e);
+            }
+            ring.readCount = head;
+        }
+    }
+
+    private static final class Ring<E> {
+        private final AtomicLong writeCount = new AtomicLong();
+        private volatile long readCount;
+        private final AtomicReferenceArray<E> slots = new AtomicReferenceArray<E>(RING_SIZE);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads a region of a file with positional reads, so several streams can
+ * share one channel. Closing the stream closes {@code owner} instead of the
+ * channel, which lets the owner decide when the channel can be closed.
+ *
+ * <p>A stream can also read a value held in memory, from a buffer instead of
+ * a channel, so that snapshots read values the same way wherever they are.
+ */
+final class RegionInputStream extends InputStream {
+    private final FileChannel channel;
+    /** The value held in memory, or null for a region of {@code channel}. */
+    private final ByteBuffer buffer;
+    private final Closeable owner;
+    /** The stream this reads a part of, or null. */
+    private final RegionInputStream parent;
+    private final long offset;
+    private final long end;
+    private final byte[] single = new byte[1];
+    private long position;
+    private boolean closed;
+
+    RegionInputStream(FileChannel channel, long offset, long length, Closeable owner) {
+        this(channel, null, offset, length, owner, null);
+    }
+
+    /** Reads the remaining bytes of {@code buffer}, which must not be modified. */
+    RegionInputStream(ByteBuffer buffer) {
+        this(null, buffer.slice().asReadOnlyBuffer(), 0, buffer.remaining(), null, null);
+    }
+
+    private RegionInputStream(FileChannel channel, ByteBuffer buffer, long offset, long length,
+            Closeable owner, RegionInputStream parent) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.owner = owner;
+        this.parent = parent;
+        this.offset = offset;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Returns the {@code length} bytes of the region from {@code start} as a
+     * read-only buffer, mapped into memory if they are at least
+     * {@code mapThreshold} bytes and read into the heap otherwise. Doesn't
+     * move the stream.
+     */
+    ByteBuffer toByteBuffer(long start, long length, long mapThreshold) throws IOException {
+        checkOpen();
+        // The file may have been truncated behind the cache's back.
+        length = Math.min(length, Math.max(0, size() - offset - start));
+        if (buffer != null) {
+            return slice(offset + start, length);
+        }
+        if (length >= mapThreshold) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset + start, length);
+        }
+        ByteBuffer result = ByteBuffer.allocate((int) length);
+        while (result.hasRemaining()) {
+            if (readAt(result, offset + start + result.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+        result.flip();
+        return result.asReadOnlyBuffer();
+    }
+
+    /**
+     * Transfers up to {@code count} bytes of the region from {@code start} to
+     * {@code target}, until a transfer makes no progress as happens when a
+     * non-blocking target is full. Returns the number of bytes transferred.
+     * Doesn't move the stream.
+     */
+    long transferTo(long start, long count, WritableByteChannel target) throws IOException {
+        checkOpen();
+        long transferred = 0;
+        if (buffer != null) {
+            ByteBuffer source = slice(offset + start,
+                    Math.min(count, Math.max(0, end - offset - start)));
+            while (source.hasRemaining()) {
+                int n = target.write(source);
+                if (n <= 0) {
+                    break;
+                }
+                transferred += n;
+            }
+            return transferred;
+        }
+        while (transferred < count) {
+            long n = channel.transferTo(offset + start + transferred, count - transferred, target);
+            if (n <= 0) {
+                break;
+            }
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * Returns a stream of up to {@code length} bytes of the region from
+     * {@code start}. It can only be read while this stream is open, and
+     * closing it leaves this stream open.
+     */
+    RegionInputStream range(long start, long length) {
+        checkOpen();
+        long regionLength = end - offset;
+        start = Math.min(start, regionLength);
+        return new RegionInputStream(channel, buffer, offset + start,
+                Math.min(length, regionLength - start), null, this);
+    }
+
+    /**
+     * Reads bytes of the region from {@code start} into {@code dst}, as much
+     * as fits. Returns the number of bytes read, or -1 if {@code start} is at
+     * or past the end of the region. Doesn't move the stream.
+     */
+    int read(long start, ByteBuffer dst) throws IOException {
+        checkOpen();
+        long remaining = end - offset - start;
+        if (remaining <= 0) {
+            return -1;
+        }
+        int count = (int) Math.min(dst.remaining(), remaining);
+        ByteBuffer target = dst;
+        if (count < dst.remaining()) {
+            target = dst.duplicate();
+            target.limit(target.position() + count);
+        }
+        int total = 0;
+        while (total < count) {
+            int read = readAt(target, offset + start + total);
+            if (read == -1) {
+                throw new EOFException(); // The file was truncated.
+            }
+            total += read;
+        }
+        dst.position(target.position());
+        return total;
+    }
+
+    /** Reads into {@code dst} from {@code at} in the file or buffer. */
+    private int readAt(ByteBuffer dst, long at) throws IOException {
+        if (buffer == null) {
+            return channel.read(dst, at);
+        }
+        if (at >= buffer.limit()) {
+            return -1;
+        }
+        ByteBuffer source = slice(at, Math.min(dst.remaining(), buffer.limit() - at));
+        int count = source.remaining();
+        dst.put(source);
+        return count;
+    }
+
+    private ByteBuffer slice(long at, long length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) at);
+        slice.limit((int) (at + length));
+        return slice.slice();
+    }
+
+    private long size() throws IOException {
+        return buffer != null ? buffer.limit() : channel.size();
+    }
+
+    private boolean isClosed() {
+        return closed || (parent != null && parent.isClosed());
+    }
+
+    private void checkOpen() {
+        if (isClosed()) {
+            throw new IllegalStateException("closed");
+        }
+    }
+
+    @Override public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+        if (isClosed()) {
+            throw new IOException("closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= end) {
+            return -1;
+        }
+        int count = (int) Math.min(len, end - position);
+        int read = readAt(ByteBuffer.wrap(b, off, count), position);
+        if (read == -1) {
+            throw new EOFException(); // The file was truncated.
+        }
+        position += read;
+        return read;
+    }
+
+    @Override public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override public void close() {
+        if (!closed) {
+            closed = true;
+            Util.closeQuietly(owner);
+        }
+    }
+}
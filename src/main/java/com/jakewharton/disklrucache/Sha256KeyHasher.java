@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes keys with SHA-256. Each thread reuses its own digest rather than
+ * looking one up for every key.
+ */
+final class Sha256KeyHasher implements BinaryKeyHasher {
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e); // Every Java platform supports SHA-256.
+            }
+        }
+    };
+
+    public String name() {
+        return "sha256";
+    }
+
+    public String hash(String key) {
+        return hashKey(key).toString();
+    }
+
+    public HashedKey hashKey(String key) {
+        // digest() resets the digest for the next key.
+        return HashedKey.fromBytes(DIGEST.get().digest(key.getBytes(Util.UTF_8)), 0);
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
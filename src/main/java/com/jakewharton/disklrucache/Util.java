@@ -21,11 +21,23 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 
 /** Junk drawer of utility methods. */
 final class Util {
   static final Charset UTF_8 = Charset.forName("UTF-8");
+  /** The two lowercase hex digits of each byte value, at twice its index. */
+  static final char[] HEX_PAIRS = new char[512];
+
+  static {
+    String digits = "0123456789abcdef";
+    for (int i = 0; i < 256; i++) {
+      HEX_PAIRS[2 * i] = digits.charAt(i >> 4);
+      HEX_PAIRS[2 * i + 1] = digits.charAt(i & 0xf);
+    }
+  }
 
   private Util() {
   }
@@ -63,6 +75,24 @@ final class Util {
     }
   }
 
+  /**
+   * Transfers up to {@code count} bytes from {@code source} to
+   * {@code target} at {@code position}, stopping early at the end of the
+   * source. Returns the number of bytes transferred.
+   */
+  static long transferFrom(ReadableByteChannel source, FileChannel target, long position,
+      long count) throws IOException {
+    long transferred = 0;
+    while (transferred < count) {
+      long n = target.transferFrom(source, position + transferred, count - transferred);
+      if (n <= 0) {
+        break;
+      }
+      transferred += n;
+    }
+    return transferred;
+  }
+
   static void closeQuietly(/*Auto*/Closeable closeable) {
     if (closeable != null) {
       try {
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores small values by appending them to large log files, so that they
+ * don't cost a file, an inode and a filesystem block each. Larger values keep
+ * a file of their own.
+ *
+ * <p>The log files are named {@code values-<number>} and live in the cache
+ * directory. Each starts with a header:
+ * <pre>
+ *     int      magic
+ *     int      version
+ * </pre>
+ * followed by records:
+ * <pre>
+ *     byte[]   hashed key (32 bytes)
+ *     int      value index
+ *     int      value length
+ *     byte[]   value
+ * </pre>
+ * A value is found by its location, the number of its file in the high 32
+ * bits and the offset of its bytes in the low 32 bits, which the cache keeps
+ * in its index and journals. Zero is never a location.
+ *
+ * <p>Values are appended to one file at a time until it is full. Values that
+ * are replaced or removed leave dead records behind; the cache tells the log
+ * as much with {@link #release}, and once most of a file's records are dead
+ * it copies the live ones to the end of the log and deletes the file. The
+ * records' keys and indexes tell which values they hold, so dead records can
+ * be recognized by checking the cache's locations.
+ *
+ * <p>Readers share one channel per file. A file being deleted is closed once
+ * the last stream reading it is.
+ */
+final class ValueLog implements Closeable {
+    static final String FILE_PREFIX = "values-";
+    static final int MAGIC = 0x444c5256; // "DLRV"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 8;
+    /** The key, value index and length that precede each value. */
+    static final int RECORD_HEADER_LENGTH = DiskLruCache.HASH_LENGTH + 8;
+
+    /** Receives the records of a log file. */
+    interface RecordVisitor {
+        void record(HashedKey key, int index, long location, long length) throws IOException;
+    }
+
+    private final File directory;
+    private final long fileSize;
+    private final ConcurrentHashMap<Integer, LogFile> files =
+            new ConcurrentHashMap<Integer, LogFile>();
+
+    /** The file values are appended to, or null until the first append. */
+    private LogFile active;
+    private int nextNumber = 1;
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+
+    private ValueLog(File directory, long fileSize) {
+        this.directory = directory;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Opens the log files in {@code directory}. Appends go to a new file,
+     * and a file is started once the last one holds at least
+     * {@code fileSize} bytes.
+     */
+    static ValueLog open(File directory, long fileSize) throws IOException {
+        ValueLog log = new ValueLog(directory, fileSize);
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("not a readable directory: " + directory);
+        }
+        for (String name : names) {
+            int number = numberOf(name);
+            if (number == -1) {
+                continue;
+            }
+            log.nextNumber = Math.max(log.nextNumber, number + 1);
+            File file = new File(directory, name);
+            LogFile logFile = LogFile.open(number, file);
+            if (logFile != null) {
+                log.files.put(number, logFile);
+            } else if (!file.delete()) {
+                // Without a header it was never appended to.
+                throw new IOException("failed to delete " + file);
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Returns the number of a log file named {@code name}, or -1 if the name
+     * is not that of a log file.
+     */
+    static int numberOf(String name) {
+        if (!name.startsWith(FILE_PREFIX)) {
+            return -1;
+        }
+        try {
+            int number = Integer.parseInt(name.substring(FILE_PREFIX.length()));
+            return number > 0 ? number : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static int fileNumber(long location) {
+        return (int) (location >>> 32);
+    }
+
+    static long offset(long location) {
+        return location & 0xffffffffL;
+    }
+
+    /**
+     * Appends the value at {@code index} of {@code key}, which is the whole
+     * of {@code source}, and returns its location.
+     */
+    long append(HashedKey key, int index, File source) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        try {
+            long length = in.length();
+            if (length > Integer.MAX_VALUE - RECORD_HEADER_LENGTH) {
+                throw new IllegalArgumentException("too large for the log: " + length);
+            }
+            byte[] value = new byte[(int) length];
+            in.readFully(value);
+            return append(key, index, value);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Appends the value at {@code location} to the end of the log and
+     * returns its new location.
+     */
+    long copy(HashedKey key, int index, long location, long length) throws IOException {
+        InputStream in = open(location, length);
+        if (in == null) {
+            throw new IOException("no log file " + fileNumber(location));
+        }
+        try {
+            byte[] value = new byte[(int) length];
+            new DataInputStream(in).readFully(value);
+            return append(key, index, value);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Appends a record while holding the log's lock. Records are small, and
+     * writing them in order means a file never has gaps a crash could leave
+     * unreadable.
+     */
+    private synchronized long append(HashedKey key, int index, byte[] value)
+            throws IOException {
+        long recordLength = RECORD_HEADER_LENGTH + value.length;
+        if (active == null || (active.size > HEADER_LENGTH
+                && active.size + recordLength > fileSize)) {
+            int number = nextNumber++;
+            active = LogFile.create(number, new File(directory, FILE_PREFIX + number));
+            files.put(number, active);
+        }
+        long position = active.size;
+        if (position + recordLength > 0xffffffffL) {
+            throw new IOException("log file too large: " + active.file);
+        }
+        recordHeader.clear();
+        key.writeTo(recordHeader);
+        recordHeader.putInt(index);
+        recordHeader.putInt(value.length);
+        recordHeader.flip();
+        try {
+            writeFully(active.channel, recordHeader, position);
+            writeFully(active.channel, ByteBuffer.wrap(value), position + RECORD_HEADER_LENGTH);
+        } catch (IOException e) {
+            // Drop the partial record so the file can still be read in order.
+            active.channel.truncate(position);
+            throw e;
+        }
+        active.size = position + recordLength;
+        return ((long) active.number << 32) | (position + RECORD_HEADER_LENGTH);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Opens a stream of the {@code length} bytes at {@code location}, or
+     * returns null if its file has been deleted.
+     */
+    RegionInputStream open(long location, long length) {
+        final LogFile file = files.get(fileNumber(location));
+        if (file == null || !file.acquire()) {
+            return null;
+        }
+        return new RegionInputStream(file.channel, offset(location), length, new Closeable() {
+            public void close() {
+                file.release();
+            }
+        });
+    }
+
+    /** Counts the value at {@code location} as live. */
+    void markLive(long location, long length) {
+        LogFile file = files.get(fileNumber(location));
+        if (file != null) {
+            file.liveBytes.addAndGet(RECORD_HEADER_LENGTH + length);
+        }
+    }
+
+    /** Counts the value at {@code location} as dead, as it was replaced or removed. */
+    void release(long location, long length) {
+        LogFile file = files.get(fileNumber(location));
+        if (file != null) {
+            file.liveBytes.addAndGet(-(RECORD_HEADER_LENGTH + length));
+        }
+    }
+
+    /**
+     * Returns the number of a file that is no longer appended to and whose
+     * records are mostly dead, or -1 if there is none.
+     */
+    synchronized int compactionCandidate() {
+        for (LogFile file : files.values()) {
+            if (file != active && !file.corrupt
+                    && 2 * file.liveBytes.get() <= file.size - HEADER_LENGTH) {
+                return file.number;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Passes each record of the file {@code number} to {@code visitor}, in
+     * order. A record cut short by a crash ends the file; no location can
+     * point into it. Returns false if the file is corrupt, after which it
+     * won't be a compaction candidate again.
+     */
+    boolean forEachRecord(int number, RecordVisitor visitor) throws IOException {
+        LogFile file = files.get(number);
+        if (file == null) {
+            return false;
+        }
+        long size;
+        synchronized (this) {
+            size = file.size;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file.file), 8192));
+        try {
+            in.skipBytes(HEADER_LENGTH);
+            byte[] hash = new byte[DiskLruCache.HASH_LENGTH];
+            long position = HEADER_LENGTH;
+            while (position < size) {
+                in.readFully(hash);
+                int index = in.readInt();
+                int length = in.readInt();
+                if (index < 0 || length < 0) {
+                    file.corrupt = true;
+                    return false;
+                }
+                long location = ((long) number << 32) | (position + RECORD_HEADER_LENGTH);
+                position += RECORD_HEADER_LENGTH + (long) length;
+                if (position > size) {
+                    break;
+                }
+                visitor.record(HashedKey.fromBytes(hash, 0), index, location, length);
+                for (long skipped = 0; skipped < length; ) {
+                    long n = in.skip(length - skipped);
+                    if (n <= 0) {
+                        throw new EOFException();
+                    }
+                    skipped += n;
+                }
+            }
+            return true;
+        } catch (EOFException e) {
+            return true; // Cut short.
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes the file {@code number} once no stream is reading it. Its values
+     * must have been copied elsewhere.
+     */
+    void delete(int number) {
+        LogFile file = files.remove(number);
+        if (file != null) {
+            file.deleteOnRelease = true;
+            file.release();
+        }
+    }
+
+    /** Closes the log files once no stream is reading them. */
+    public synchronized void close() {
+        for (LogFile file : files.values()) {
+            file.release();
+        }
+        files.clear();
+        active = null;
+    }
+
+    private static final class LogFile {
+        final int number;
+        final File file;
+        final FileChannel channel;
+        /** The length of the file's records. Guarded by the log. */
+        long size;
+        /** The bytes of the records holding live values. */
+        final AtomicLong liveBytes = new AtomicLong();
+        /** One for the log, plus one per open stream; the file is closed at zero. */
+        final AtomicInteger refCount = new AtomicInteger(1);
+        volatile boolean deleteOnRelease;
+        volatile boolean corrupt;
+
+        private LogFile(int number, File file, FileChannel channel, long size) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        static LogFile create(int number, File file) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                writeFully(channel, header, 0);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return new LogFile(number, file, channel, HEADER_LENGTH);
+        }
+
+        /** Returns the log file {@code file}, or null if it has no valid header. */
+        static LogFile open(int number, File file) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            try {
+                if (channel.size() < HEADER_LENGTH
+                        || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    channel.close();
+                    return null;
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return new LogFile(number, file, channel, channel.size());
+        }
+
+        boolean acquire() {
+            while (true) {
+                int count = refCount.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (refCount.decrementAndGet() == 0) {
+                Util.closeQuietly(channel);
+                if (deleteOnRelease) {
+                    file.delete();
+                }
+            }
+        }
+    }
+}
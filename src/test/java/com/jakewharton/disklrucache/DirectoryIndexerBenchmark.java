@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how indexing a cache directory without an index scales with the
+ * number of threads. Run it from the test classpath, for example with a
+ * 1M-file tree:
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *     org.openjdk.jmh.Main DirectoryIndexerBenchmark -p fileCount=1000000
+ * </pre>
+ *
+ * <p>The tree is created once in the temporary directory and reused by later
+ * runs, so the filesystem's caches are warm. Delete it when done.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DirectoryIndexerBenchmark {
+    @Param({"100000"})
+    public int fileCount;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int parallelism;
+
+    private File directory;
+    private List<File> dirs;
+
+    @Setup(Level.Trial)
+    public void createTree() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"),
+                "DirectoryIndexerBenchmark-" + fileCount);
+        if (!directory.exists()) {
+            for (int i = 0; i < fileCount; i++) {
+                String key = DigestUtils.sha256Hex(Integer.toString(i));
+                File dir = new File(directory, key.substring(0, DiskLruCache.SUBDIR_PREFIX_LENGTH));
+                dir.mkdirs();
+                new File(dir, key + ".0").createNewFile();
+            }
+        }
+        dirs = new ArrayList<File>();
+        for (File file : directory.listFiles()) {
+            if (file.isDirectory()) {
+                dirs.add(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public int index() {
+        final AtomicInteger count = new AtomicInteger();
+        DirectoryIndexer.index(dirs, 1, false, parallelism, new DirectoryIndexer.Sink() {
+            public void accept(List<DirectoryIndexer.IndexedValue> values) {
+                count.addAndGet(values.size());
+            }
+        });
+        if (count.get() != fileCount) {
+            throw new AssertionError("indexed " + count + " of " + fileCount + " files");
+        }
+        return count.get();
+    }
+}
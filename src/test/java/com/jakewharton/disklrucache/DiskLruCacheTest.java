@@ -17,16 +17,45 @@
 package com.jakewharton.disklrucache;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
@@ -208,6 +237,28 @@ public final class DiskLruCacheTest {
         cache.executorService.purge();
     }
 
+    @Test(timeout = 10000) public void evictionSkipsEntriesBeingEdited() throws Exception {
+        for (int mode = 0; mode < 2; mode++) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            cache = DiskLruCache.open(cacheDir, 2, 10,
+                    new DiskLruCache.Options().setOffHeapIndex(mode == 1));
+            set("a", "aa", "aa"); // size 4
+            DiskLruCache.Editor editor = cache.edit("a");
+            set("b", "bb", "bb"); // size 8
+            set("c", "cc", "cc"); // size 12
+            cache.flush();
+            assertThat(cache.size()).isEqualTo(8);
+            assertAbsent("b");
+            assertValue("c", "cc", "cc");
+            editor.set(0, "aaa");
+            editor.commit();
+            cache.flush();
+            assertThat(cache.size()).isLessThanOrEqualTo(10);
+            assertValue("c", "cc", "cc");
+        }
+    }
+
     @Test public void evictOnInsert() throws Exception {
         cache.close();
         cache = DiskLruCache.open(cacheDir, 2, 10);
@@ -561,6 +612,528 @@ public final class DiskLruCacheTest {
         assertThat(cache.get("aW04z5gcnXtRWPXXFLtfxJs1EMKzPHiM")).isNull();
     }
 
+    @Test public void readsExistingDirIgnoresDirtyAndMisplacedFiles() throws Exception {
+        File f = new File(cacheDir, "58/58a7b0785038663a4f0cdd38628bba57ecf86ffa37f692d9493d87a61aa3c9ae.0.tmp");
+        f.getParentFile().mkdir();
+        f.createNewFile();
+        f = new File(cacheDir, "50/58a7b0785038663a4f0cdd38628bba57ecf86ffa37f692d9493d87a61aa3c9ae.0");
+        f.getParentFile().mkdir();
+        f.createNewFile();
+        f = new File(cacheDir, "58a7b0785038663a4f0cdd38628bba57ecf86ffa37f692d9493d87a61aa3c9ae.0");
+        f.createNewFile();
+        cache = DiskLruCache.open(cacheDir, 1, 99999);
+        assertThat(cache.get("cls1.cfc76a55-d434-4f0e-8bea-3a015e9ee6f0.training")).isNull();
+    }
+
+    @Test public void indexingOrdersEntriesByLastUse() throws Exception {
+        set("a", "a", "a");
+        set("b", "b", "b");
+        set("c", "c", "c");
+        cache.close();
+        deleteIndexAndJournals();
+        setLastUsed("a", 3000000L);
+        setLastUsed("b", 1000000L);
+        setLastUsed("c", 2000000L);
+
+        cache = DiskLruCache.open(cacheDir, 2, 4);
+        set("d", "d", "d");
+        cache.flush();
+        assertValue("a", "a", "a");
+        assertAbsent("b");
+        assertAbsent("c");
+        assertValue("d", "d", "d");
+    }
+
+    @Test public void indexingAccountsForRecoveredSize() throws Exception {
+        set("a", "a", "aa");
+        set("b", "bbb", "bbbb");
+        cache.close();
+        deleteIndexAndJournals();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        assertThat(cache.size()).isEqualTo(10);
+    }
+
+    @Test public void indexingDeletesIncompleteEntries() throws Exception {
+        set("a", "a", "a");
+        set("b", "b", "b");
+        cache.close();
+        deleteIndexAndJournals();
+        getCleanFile("a", 1).delete();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        assertThat(cache.size()).isEqualTo(2);
+        assertAbsent("a");
+        assertValue("b", "b", "b");
+    }
+
+    @Test public void openTrimsWhenRecoveredSizeExceedsMaxSize() throws Exception {
+        set("a", "a", "a");
+        set("b", "b", "b");
+        set("c", "c", "c");
+        cache.close();
+        deleteIndexAndJournals();
+        setLastUsed("a", 1000000L);
+        setLastUsed("b", 2000000L);
+        setLastUsed("c", 3000000L);
+        cache = DiskLruCache.open(cacheDir, 2, 4);
+        awaitExecutor();
+        assertThat(cache.size()).isEqualTo(4);
+        assertAbsent("a");
+        assertValue("b", "b", "b");
+        assertValue("c", "c", "c");
+    }
+
+    @Test public void lazyIndexingLoadsSubdirectoryOnAccess() throws Exception {
+        set("a", "a", "a");
+        set("b", "bb", "b");
+        cache.close();
+        deleteIndexAndJournals();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE,
+                new DiskLruCache.Options().setLazyIndexing(true));
+        assertValue("a", "a", "a");
+        assertValue("b", "bb", "b");
+        assertThat(cache.remove("a")).isTrue();
+        assertAbsent("a");
+    }
+
+    @Test public void lazyIndexingWarmsRemainingSubdirectories() throws Exception {
+        set("a", "a", "a");
+        set("b", "bb", "b");
+        set("c", "ccc", "c");
+        cache.close();
+        deleteIndexAndJournals();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE,
+                new DiskLruCache.Options().setLazyIndexing(true));
+        for (int i = 0; i < 100 && cache.size() != 9; i++) {
+            awaitExecutor();
+        }
+        assertThat(cache.size()).isEqualTo(9);
+    }
+
+    @Test public void lazyIndexingKeepsUnloadedEntriesAcrossReopen() throws Exception {
+        set("a", "a", "a");
+        set("b", "bb", "b");
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE,
+                new DiskLruCache.Options().setLazyIndexing(true));
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE,
+                new DiskLruCache.Options().setLazyIndexing(true));
+        set("c", "c", "c");
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        assertThat(cache.size()).isEqualTo(7);
+        assertValue("a", "a", "a");
+        assertValue("b", "bb", "b");
+        assertValue("c", "c", "c");
+    }
+
+    @Test public void snapshotIsNotAffectedByLaterEdits() throws Exception {
+        set("a", "aaa", "b");
+        DiskLruCache.Snapshot snapshot = cache.get("a");
+        set("a", "a", "bbbbb");
+        assertThat(snapshot.getLength(0)).isEqualTo(3);
+        assertThat(snapshot.getLength(1)).isEqualTo(1);
+        assertThat(snapshot.getString(0)).isEqualTo("aaa");
+        snapshot.close();
+        assertValue("a", "a", "bbbbb");
+    }
+
+    @Test public void concurrentReadsSeeWholeEdits() throws Exception {
+        assertConcurrentReadsSeeWholeEdits();
+    }
+
+    @Test public void concurrentReadsSeeWholeEditsWithOffHeapIndex() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE,
+                new DiskLruCache.Options().setOffHeapIndex(true));
+        assertConcurrentReadsSeeWholeEdits();
+    }
+
+    private void assertConcurrentReadsSeeWholeEdits() throws Exception {
+        set("a", "0", "0");
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> torn = new AtomicReference<String>();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override public void run() {
+                    try {
+                        while (!done.get()) {
+                            DiskLruCache.Snapshot snapshot = cache.get("a");
+                            String value0 = snapshot.getString(0);
+                            String value1 = snapshot.getString(1);
+                            if (!value0.equals(value1)
+                                    || snapshot.getLength(0) != value0.length()) {
+                                torn.set(value0 + "/" + value1);
+                            }
+                            snapshot.close();
+                        }
+                    } catch (Exception e) {
+                        torn.set(e.toString());
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (int i = 1; i < 500; i++) {
+            set("a", Integer.toString(i), Integer.toString(i));
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertThat(torn.get()).isNull();
+    }
+
+    @Test public void asyncOperationsRunOnExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AsyncDiskLruCache async = new AsyncDiskLruCache(cache, executor, 4);
+            assertThat(async.putAsync("a", "a", "bb").get()).isTrue();
+            DiskLruCache.Snapshot snapshot = async.getAsync("a").get();
+            assertThat(snapshot.getString(0)).isEqualTo("a");
+            assertThat(snapshot.getString(1)).isEqualTo("bb");
+            snapshot.close();
+            assertThat(async.removeAsync("a").get()).isTrue();
+            assertThat(async.getAsync("a").get()).isNull();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void asyncOperationsBeyondMaxInFlightAreRejected() throws Exception {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        AsyncDiskLruCache async = new AsyncDiskLruCache(cache, new Executor() {
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        }, 1);
+        CompletableFuture<Boolean> put = async.putAsync("a", "a", "a");
+        CompletableFuture<DiskLruCache.Snapshot> get = async.getAsync("a");
+        assertThat(async.inFlight()).isEqualTo(1);
+        try {
+            get.get();
+            fail();
+        } catch (ExecutionException expected) {
+            assertThat(expected.getCause()).isInstanceOf(RejectedExecutionException.class);
+        }
+        queued.remove(0).run();
+        assertThat(put.get()).isTrue();
+        assertThat(async.inFlight()).isEqualTo(0);
+    }
+
+    @Test public void virtualThreadsRequireSupportingRuntime() throws Exception {
+        if (!VirtualThreads.isAvailable()) {
+            try {
+                new DiskLruCache.Options().setVirtualThreads(true);
+                fail();
+            } catch (UnsupportedOperationException expected) {
+            }
+            return;
+        }
+        set("a", "a", "a");
+        cache.close();
+        deleteIndexAndJournals();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE,
+                new DiskLruCache.Options().setVirtualThreads(true));
+        assertValue("a", "a", "a");
+        ExecutorService executor = AsyncDiskLruCache.newVirtualThreadExecutor();
+        try {
+            AsyncDiskLruCache async = new AsyncDiskLruCache(cache, executor, 100);
+            assertThat(async.putAsync("b", "b", "b").get()).isTrue();
+            async.getAsync("b").get().close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void directoryIndexerRunsOnExecutor() throws Exception {
+        set("a", "a", "a");
+        set("b", "b", "b");
+        set("c", "c", "c");
+        List<File> dirs = new ArrayList<File>();
+        for (File file : cacheDir.listFiles()) {
+            if (file.isDirectory()) {
+                dirs.add(file);
+            }
+        }
+        final List<DirectoryIndexer.IndexedValue> found =
+                new ArrayList<DirectoryIndexer.IndexedValue>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            DirectoryIndexer.index(dirs, 2, false, executor, new DirectoryIndexer.Sink() {
+                public void accept(List<DirectoryIndexer.IndexedValue> values) {
+                    synchronized (found) {
+                        found.addAll(values);
+                    }
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(found).hasSize(6);
+    }
+
+    @Test public void segmentedCacheEvictsWithinEachSegment() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, 40,
+                new DiskLruCache.Options().setSegmentCount(4));
+        for (int i = 0; i < 50; i++) {
+            set("k" + i, "a", "b");
+        }
+        cache.flush();
+        assertThat(cache.size()).isLessThanOrEqualTo(40);
+        assertValue("k49", "a", "b");
+    }
+
+    @Test public void segmentedCacheRestoresEntriesWithAnotherSegmentCount() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE,
+                new DiskLruCache.Options().setSegmentCount(16));
+        for (int i = 0; i < 20; i++) {
+            set("k" + i, "a" + i, "b");
+        }
+        cache.remove("k3");
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE,
+                new DiskLruCache.Options().setSegmentCount(2));
+        assertAbsent("k3");
+        for (int i = 0; i < 20; i++) {
+            if (i != 3) {
+                assertValue("k" + i, "a" + i, "b");
+            }
+        }
+    }
+
+    @Test public void segmentCountMustBePowerOfTwo() throws Exception {
+        try {
+            new DiskLruCache.Options().setSegmentCount(3);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new DiskLruCache.Options().setSegmentCount(512);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test public void sweeperDeletesStaleDirtyFiles() throws Exception {
+        set("a", "a", "a");
+        cache.close();
+        File dirtyA = getDirtyFile("a", 0);
+        File dirtyB = getDirtyFile("b", 1);
+        writeFile(dirtyA, "abc");
+        writeFile(dirtyB, "de");
+        dirtyA.setLastModified(1000L);
+        dirtyB.setLastModified(1000L);
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        cache.sweeperThread.join();
+        assertThat(dirtyA).doesNotExist();
+        assertThat(dirtyB).doesNotExist();
+        assertThat(cache.getReclaimedBytes()).isEqualTo(5);
+        assertValue("a", "a", "a");
+    }
+
+    @Test public void sweeperKeepsDirtyFilesOfOngoingEdits() throws Exception {
+        DiskLruCache.Editor editor = cache.edit("k1");
+        editor.set(0, "A");
+        editor.set(1, "B");
+        new DirtyFileSweeper(cache, cacheDir, Long.MAX_VALUE).run();
+        assertThat(getDirtyFile("k1", 0)).exists();
+        assertThat(getDirtyFile("k1", 1)).exists();
+        editor.commit();
+        assertValue("k1", "A", "B");
+    }
+
+    @Test public void sweeperKeepsDirtyFilesOfEditsStartedAfterItsCheck() throws Exception {
+        HashedKey key = HashedKey.parse(DigestUtils.sha256Hex("k1"), 0);
+        assertThat(cache.keysBeingEdited(Arrays.asList(key))).isEmpty();
+        DiskLruCache.Editor editor = cache.edit("k1");
+        editor.set(0, "A");
+        editor.set(1, "B");
+        // As on a filesystem whose modification times are too coarse to tell.
+        File dirty = getDirtyFile("k1", 0);
+        dirty.setLastModified(1000L);
+        assertThat(cache.deleteLeftoverFile(key, dirty, Long.MAX_VALUE)).isFalse();
+        assertThat(dirty).exists();
+        editor.commit();
+        assertValue("k1", "A", "B");
+    }
+
+    @Test public void directoryIndexerParsesValueIndices() throws Exception {
+        String key = "58a7b0785038663a4f0cdd38628bba57ecf86ffa37f692d9493d87a61aa3c9ae";
+        assertThat(DirectoryIndexer.valueIndex(key + ".0", "58", 2)).isEqualTo(0);
+        assertThat(DirectoryIndexer.valueIndex(key + ".1", "58", 2)).isEqualTo(1);
+        assertThat(DirectoryIndexer.valueIndex(key + ".12", "58", 13)).isEqualTo(12);
+        assertThat(DirectoryIndexer.valueIndex(key + ".2", "58", 2)).isEqualTo(-1);
+        assertThat(DirectoryIndexer.valueIndex(key + ".01", "58", 2)).isEqualTo(-1);
+        assertThat(DirectoryIndexer.valueIndex(key + ".0.tmp", "58", 2)).isEqualTo(-1);
+        assertThat(DirectoryIndexer.valueIndex(key + ".", "58", 2)).isEqualTo(-1);
+        assertThat(DirectoryIndexer.valueIndex(key + ".0", "50", 2)).isEqualTo(-1);
+        assertThat(DirectoryIndexer.valueIndex(key.toUpperCase() + ".0", "58", 2)).isEqualTo(-1);
+        assertThat(DirectoryIndexer.valueIndex("journal-0", "58", 2)).isEqualTo(-1);
+    }
+
+    @Test public void indexRestoresEntriesAfterReopen() throws Exception {
+        set("a", "a", "aa");
+        set("b", "bbb", "b");
+        cache.close();
+        assertThat(new File(cacheDir, DiskLruCache.INDEX_FILE)).exists();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        assertThat(cache.size()).isEqualTo(7);
+        assertValue("a", "a", "aa");
+        assertValue("b", "bbb", "b");
+    }
+
+    @Test public void indexWritesRecordsInSeveralChunks() throws Exception {
+        for (boolean offHeapIndex : new boolean[] {false, true}) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            DiskLruCache.Options options = new DiskLruCache.Options()
+                    .setOffHeapIndex(offHeapIndex);
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            // More than the 64 + 128 records of the first two chunks.
+            for (int i = 0; i < 300; i++) {
+                set("k" + i, "a" + i, "b");
+            }
+            cache.close();
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            for (int i = 0; i < 300; i++) {
+                assertSnapshot("k" + i, "a" + i, "b");
+            }
+        }
+    }
+
+    @Test public void indexPreservesLruOrder() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, 10);
+        set("a", "a", "a");
+        set("b", "b", "b");
+        set("c", "c", "c");
+        set("d", "d", "d");
+        set("e", "e", "e");
+        cache.get("b").close(); // 'B' is now least recently used.
+        cache.close();
+
+        cache = DiskLruCache.open(cacheDir, 2, 10);
+        set("f", "f", "f");
+        set("g", "g", "g");
+        cache.flush();
+        assertAbsent("a");
+        assertValue("b", "b", "b");
+        assertAbsent("c");
+        assertValue("d", "d", "d");
+    }
+
+    @Test public void indexReindexesSubdirectoryCreatedAfterIt() throws Exception {
+        set("a", "a", "a");
+        cache.close();
+        // "RgNIf9vHXHGckbBjYOAgbTUqONUaiDGk" hashes into a different subdirectory than "a".
+        File f = new File(cacheDir, "58/585bbc0122a3173e70cdc2b08ce6d9b9dc3d64629fa6c46057ba6c61df443f21.0");
+        f.getParentFile().mkdir();
+        writeFile(f, "b");
+        f = new File(cacheDir, "58/585bbc0122a3173e70cdc2b08ce6d9b9dc3d64629fa6c46057ba6c61df443f21.1");
+        writeFile(f, "b");
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        assertValue("a", "a", "a");
+        assertThat(cache.get("RgNIf9vHXHGckbBjYOAgbTUqONUaiDGk").getString(0)).isEqualTo("b");
+    }
+
+    @Test public void indexReindexesFilesAddedWhileOpen() throws Exception {
+        set("a", "a", "a");
+        // "RgNIf9vHXHGckbBjYOAgbTUqONUaiDGk" hashes into a different subdirectory than "a".
+        File f = new File(cacheDir, "58/585bbc0122a3173e70cdc2b08ce6d9b9dc3d64629fa6c46057ba6c61df443f21.0");
+        f.getParentFile().mkdir();
+        writeFile(f, "b");
+        f = new File(cacheDir, "58/585bbc0122a3173e70cdc2b08ce6d9b9dc3d64629fa6c46057ba6c61df443f21.1");
+        writeFile(f, "b");
+
+        // A key in the subdirectory of "a", which the cache changes again afterwards.
+        String neighbor = null;
+        String prefix = DigestUtils.sha256Hex("a").substring(0, 2);
+        for (int i = 0; neighbor == null; i++) {
+            if (DigestUtils.sha256Hex("k" + i).startsWith(prefix)) {
+                neighbor = "k" + i;
+            }
+        }
+        writeFile(getCleanFile(neighbor, 0), "c");
+        writeFile(getCleanFile(neighbor, 1), "c");
+        // Timestamps are coarse, so make sure the change shows.
+        getCleanFile("a", 0).getParentFile().setLastModified(1000L);
+        set("a", "aa", "aa");
+
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        assertValue("a", "aa", "aa");
+        assertValue("RgNIf9vHXHGckbBjYOAgbTUqONUaiDGk", "b", "b");
+        assertValue(neighbor, "c", "c");
+        assertThat(cache.size()).isEqualTo(8);
+    }
+
+    @Test public void corruptIndexFallsBackToDirectoryScan() throws Exception {
+        set("a", "a", "a");
+        cache.close();
+        writeFile(new File(cacheDir, DiskLruCache.INDEX_FILE), "garbage");
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        assertValue("a", "a", "a");
+    }
+
+    @Test public void journalReplaysOperationsSinceIndex() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, 10);
+        set("a", "a", "a");
+        set("b", "b", "b");
+        set("c", "c", "c");
+        set("d", "d", "d");
+        set("e", "e", "e");
+        cache.get("b").close(); // 'B' is now least recently used.
+        cache.remove("d");
+        cache.flush();
+        backdateSubdirectories();
+
+        // Reopen without closing, as if the process had crashed.
+        cache = DiskLruCache.open(cacheDir, 2, 10);
+        assertThat(cache.size()).isEqualTo(8);
+        assertAbsent("d");
+        set("f", "f", "f");
+        set("g", "g", "g");
+        set("h", "h", "h");
+        cache.flush();
+        assertAbsent("a");
+        assertValue("b", "b", "b");
+        assertAbsent("c");
+        assertValue("e", "e", "e");
+    }
+
+    @Test public void journalDropsEntriesWithUnfinishedEdits() throws Exception {
+        set("a", "a", "a");
+        set("b", "b", "b");
+        DiskLruCache.Editor editor = cache.edit("a");
+        editor.set(0, "a2");
+        cache.flush();
+        backdateSubdirectories();
+
+        // Reopen without closing, as if the process had crashed.
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        assertAbsent("a");
+        assertValue("b", "b", "b");
+    }
+
+    @Test public void journalIsCompactedAfterRedundantOperations() throws Exception {
+        set("a", "a", "a");
+        for (int i = 0; i < DiskLruCache.REDUNDANT_OP_COMPACT_THRESHOLD; i++) {
+            cache.get("a").close();
+        }
+        awaitExecutor();
+        assertThat(Journal.fileFor(cacheDir, 0)).doesNotExist();
+        assertThat(Journal.fileFor(cacheDir, 1)).exists();
+
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        assertValue("a", "a", "a");
+    }
+
     private File getCleanFile(String key, int index) {
         File f = new File(cacheDir, DigestUtils.sha256Hex(key).substring(0, 2) +
                 File.separator +
@@ -653,6 +1226,906 @@ public final class DiskLruCacheTest {
         assertThat(new File(cacheDir, "dir1")).doesNotExist();
     }
 
+    @Test public void offHeapIndexEvictsAndRestoresEntries() throws Exception {
+        cache.close();
+        DiskLruCache.Options options = new DiskLruCache.Options().setOffHeapIndex(true);
+        cache = DiskLruCache.open(cacheDir, 2, 10, options);
+        set("a", "a", "aaa"); // size 4
+        set("b", "bb", "bbbb"); // size 6
+        assertValue("a", "a", "aaa"); // Now b is the least recently used.
+        set("c", "c", "c"); // size 12
+        cache.flush();
+        assertThat(cache.size()).isEqualTo(6);
+        assertAbsent("b");
+
+        DiskLruCache.Editor editor = cache.edit("a");
+        editor.set(0, "aa");
+        assertValue("a", "a", "aaa");
+        editor.commit();
+        assertValue("a", "aa", "aaa");
+        assertThat(cache.remove("c")).isTrue();
+        assertThat(cache.size()).isEqualTo(5);
+
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, 10, options);
+        assertValue("a", "aa", "aaa");
+        assertAbsent("c");
+        assertThat(cache.size()).isEqualTo(5);
+    }
+
+    @Test public void offHeapIndexMatchesLinkedHashMap() throws Exception {
+        OffHeapIndex index = new OffHeapIndex(1);
+        // In insertion order, so updates keep their place like the index's.
+        Map<HashedKey, Long> expected = new LinkedHashMap<HashedKey, Long>();
+        Random random = new Random(0);
+        HashedKey[] keys = new HashedKey[2000];
+        for (int i = 0; i < keys.length; i++) {
+            // Few distinct hash codes, so that probe runs are long.
+            keys[i] = new HashedKey(random.nextLong(), i, random.nextLong(), random.nextInt(64));
+        }
+        for (int i = 0; i < 100000; i++) {
+            HashedKey key = keys[random.nextInt(keys.length)];
+            switch (random.nextInt(3)) {
+                case 0:
+                    index.put(key, i, new long[] {i});
+                    expected.put(key, (long) i);
+                    break;
+                case 1:
+                    assertThat(index.remove(key)).isEqualTo(expected.remove(key) != null);
+                    break;
+                default:
+                    int slot = index.find(key);
+                    Long value = expected.remove(key);
+                    assertThat(slot == OffHeapIndex.NONE).isEqualTo(value == null);
+                    if (value != null) {
+                        index.touch(slot);
+                        expected.put(key, value);
+                        assertThat(index.sequenceNumber(slot)).isEqualTo(value.longValue());
+                        assertThat(index.length(slot, 0)).isEqualTo(value.longValue());
+                    }
+            }
+        }
+        List<HashedKey> order = new ArrayList<HashedKey>();
+        for (int slot = index.eldest(); slot != OffHeapIndex.NONE; slot = index.newer(slot)) {
+            order.add(index.key(slot));
+        }
+        assertThat(order).isEqualTo(new ArrayList<HashedKey>(expected.keySet()));
+        assertThat(index.size()).isEqualTo(expected.size());
+    }
+
+    @Test public void countingBloomFilterHasNoFalseNegatives() throws Exception {
+        CountingBloomFilter filter = new CountingBloomFilter(10000);
+        Random random = new Random(0);
+        HashedKey[] keys = new HashedKey[20000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new HashedKey(random.nextLong(), random.nextLong(), random.nextLong(),
+                    random.nextLong());
+        }
+        for (int i = 0; i < 10000; i++) {
+            filter.add(keys[i]);
+        }
+        // Remove the first half, which leaves 5000 present and 15000 missing.
+        for (int i = 0; i < 5000; i++) {
+            filter.remove(keys[i]);
+        }
+        assertThat(filter.size()).isEqualTo(5000);
+        int falsePositives = 0;
+        for (int i = 0; i < keys.length; i++) {
+            boolean present = i >= 5000 && i < 10000;
+            if (present) {
+                assertThat(filter.mightContain(keys[i])).isTrue();
+            } else if (filter.mightContain(keys[i])) {
+                falsePositives++;
+            }
+        }
+        assertThat(falsePositives).isLessThan(15000 / 100);
+    }
+
+    @Test public void missFilterAnswersMisses() throws Exception {
+        for (boolean offHeapIndex : new boolean[] {false, true}) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            DiskLruCache.Options options = new DiskLruCache.Options()
+                    .setMissFilter(true)
+                    .setOffHeapIndex(offHeapIndex);
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            // More than fit the filter's initial capacity, so it grows twice.
+            int count = 2 * DiskLruCache.MISS_FILTER_INITIAL_CAPACITY + 100;
+            for (int i = 0; i < count; i++) {
+                set("k" + i, "a", "b");
+            }
+            for (int i = 0; i < count; i += 2) {
+                cache.remove("k" + i);
+            }
+            for (int i = 0; i < count; i++) {
+                assertThat(cache.contains("k" + i)).isEqualTo(i % 2 == 1);
+            }
+            assertThat(cache.get("missing")).isNull();
+
+            // The filter is rebuilt as the cache is loaded.
+            cache.close();
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            for (int i = 1; i < count; i += 2) {
+                assertValue("k" + i, "a", "b");
+            }
+            assertAbsent("k0");
+        }
+    }
+
+    @Test public void sha256KeyHasherMatchesDigest() throws Exception {
+        for (String key : new String[] {"", "a", "k1", "\u00e9t\u00e9"}) {
+            assertThat(KeyHasher.SHA_256.hash(key)).isEqualTo(DigestUtils.sha256Hex(key));
+        }
+    }
+
+    @Test public void hashedKeyRoundTrips() throws Exception {
+        String hex = DigestUtils.sha256Hex("a");
+        HashedKey key = HashedKey.parse(hex, 0);
+        assertThat(key.toString()).isEqualTo(hex);
+        assertThat(key.subdirectoryName()).isEqualTo(hex.substring(0, 2));
+        assertThat(key.path(".0")).isEqualTo(hex.substring(0, 2) + File.separator + hex + ".0");
+
+        byte[] bytes = new byte[DiskLruCache.HASH_LENGTH + 1];
+        key.toBytes(bytes, 1);
+        assertThat(HashedKey.fromBytes(bytes, 1)).isEqualTo(key);
+        assertThat(HashedKey.fromBytes(bytes, 1).hashCode()).isEqualTo(key.hashCode());
+        assertThat(HashedKey.parse("x" + hex, 1)).isEqualTo(key);
+
+        assertThat(HashedKey.parse(hex.toUpperCase(Locale.US), 0)).isNull();
+        assertThat(HashedKey.parse(hex.substring(1), 0)).isNull();
+    }
+
+    /** Checks the verification value of MurmurHash3_x64_128 from SMHasher. */
+    @Test public void murmur3MatchesReferenceImplementation() throws Exception {
+        byte[] key = new byte[256];
+        byte[] hashes = new byte[256 * 16];
+        long[] hash = new long[2];
+        for (int i = 0; i < 256; i++) {
+            key[i] = (byte) i;
+            Murmur3KeyHasher.murmur3(key, i, 256 - i, hash);
+            for (int j = 0; j < 16; j++) {
+                hashes[i * 16 + j] = (byte) (hash[j / 8] >>> (8 * (j % 8)));
+            }
+        }
+        Murmur3KeyHasher.murmur3(hashes, hashes.length, 0, hash);
+        assertThat((int) hash[0]).isEqualTo(0x6384ba69);
+    }
+
+    @Test public void murmur3KeyHasherNamesFilesByHash() throws Exception {
+        cache.close();
+        File dir = tempDir.newFolder("murmur3KeyHasherNamesFilesByHash");
+        DiskLruCache.Options options = new DiskLruCache.Options()
+                .setKeyHasher(KeyHasher.MURMUR3_128);
+        cache = DiskLruCache.open(dir, 2, Integer.MAX_VALUE, options);
+        set("a", "a", "a");
+        String hashedKey = KeyHasher.MURMUR3_128.hash("a");
+        assertThat(HashedKey.parse(hashedKey, 0).toString()).isEqualTo(hashedKey);
+        assertThat(hashedKey).isNotEqualTo(KeyHasher.MURMUR3_128.hash("b"));
+        assertThat(new File(dir, hashedKey.substring(0, 2) + File.separator + hashedKey + ".0"))
+                .exists();
+        cache.close();
+        cache = DiskLruCache.open(dir, 2, Integer.MAX_VALUE, options);
+        DiskLruCache.Snapshot snapshot = cache.get("a");
+        assertThat(snapshot.getString(0)).isEqualTo("a");
+        snapshot.close();
+    }
+
+    @Test public void openWithAnotherKeyHasherFails() throws Exception {
+        set("a", "a", "a");
+        cache.close();
+        DiskLruCache.Options murmur3 = new DiskLruCache.Options()
+                .setKeyHasher(KeyHasher.MURMUR3_128);
+        try {
+            DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, murmur3);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        // Directories that predate the record of the hasher use SHA-256.
+        new File(cacheDir, DiskLruCache.KEY_HASHER_FILE).delete();
+        try {
+            DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, murmur3);
+            fail();
+        } catch (IOException expected) {
+        }
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        assertValue("a", "a", "a");
+        assertThat(new File(cacheDir, DiskLruCache.KEY_HASHER_FILE)).exists();
+    }
+
+    @Test public void packedValuesAreStoredInOneFile() throws Exception {
+        cache.close();
+        FileUtils.deleteDirectory(cacheDir);
+        DiskLruCache.Options packed = new DiskLruCache.Options().setPackedValues(true);
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, packed);
+        File file = new File(getCleanFile("a", 0).getParentFile(), DigestUtils.sha256Hex("a"));
+
+        // Values are found by the header, whatever order they were written in.
+        DiskLruCache.Editor creator = cache.edit("a");
+        creator.set(1, "a2");
+        creator.set(0, "a1");
+        creator.commit();
+        assertSnapshot("a", "a1", "a2");
+        assertThat(file.getParentFile().list()).containsOnly(file.getName());
+        assertThat(file.length()).isEqualTo(2 * 16 + 4);
+
+        // Values that weren't written are kept.
+        DiskLruCache.Editor editor = cache.edit("a");
+        assertThat(editor.getString(0)).isEqualTo("a1");
+        OutputStream out = editor.newOutputStream(1);
+        try {
+            editor.newOutputStream(0);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        out.write("b22".getBytes(Util.UTF_8));
+        out.close();
+        editor.commit();
+        assertSnapshot("a", "a1", "b22");
+        assertThat(cache.size()).isEqualTo(5);
+
+        DiskLruCache.Editor aborted = cache.edit("a");
+        aborted.set(0, "c1");
+        aborted.abort();
+        assertSnapshot("a", "a1", "b22");
+        assertThat(file.getParentFile().list()).containsOnly(file.getName());
+
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, packed);
+        assertSnapshot("a", "a1", "b22");
+
+        // Without an index or journal the lengths are read from the header.
+        cache.close();
+        deleteIndexAndJournals();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, packed);
+        assertSnapshot("a", "a1", "b22");
+        assertThat(cache.size()).isEqualTo(5);
+
+        assertThat(cache.remove("a")).isTrue();
+        assertThat(cache.get("a")).isNull();
+        assertThat(file).doesNotExist();
+    }
+
+    @Test public void openWithAnotherLayoutFails() throws Exception {
+        set("a", "a", "a");
+        cache.close();
+        try {
+            DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE,
+                    new DiskLruCache.Options().setPackedValues(true));
+            fail();
+        } catch (IOException expected) {
+        }
+
+        // Directories that predate the record of the layout use a file per value.
+        new File(cacheDir, DiskLruCache.LAYOUT_FILE).delete();
+        try {
+            DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE,
+                    new DiskLruCache.Options().setPackedValues(true));
+            fail();
+        } catch (IOException expected) {
+        }
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE);
+        assertValue("a", "a", "a");
+        assertThat(new File(cacheDir, DiskLruCache.LAYOUT_FILE)).exists();
+    }
+
+    @Test public void valueLogHoldsSmallValues() throws Exception {
+        for (boolean offHeapIndex : new boolean[] {false, true}) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            DiskLruCache.Options options = new DiskLruCache.Options()
+                    .setValueLog(8)
+                    .setOffHeapIndex(offHeapIndex);
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+
+            set("a", "small", "larger than eight");
+            assertSnapshot("a", "small", "larger than eight");
+            assertThat(getCleanFile("a", 0)).doesNotExist();
+            assertThat(getCleanFile("a", 1)).exists();
+            assertThat(new File(cacheDir, ValueLog.FILE_PREFIX + 1)).exists();
+
+            // A value that moves to the log no longer needs its file.
+            DiskLruCache.Editor editor = cache.edit("a");
+            assertThat(editor.getString(0)).isEqualTo("small");
+            editor.set(1, "tiny");
+            editor.commit();
+            assertSnapshot("a", "small", "tiny");
+            assertThat(getCleanFile("a", 1)).doesNotExist();
+            assertThat(cache.size()).isEqualTo(9);
+
+            cache.close();
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            assertSnapshot("a", "small", "tiny");
+
+            // Reopen without closing, as if the process had crashed.
+            set("b", "b0", "b1");
+            cache.flush();
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            assertSnapshot("a", "small", "tiny");
+            assertSnapshot("b", "b0", "b1");
+            assertThat(cache.size()).isEqualTo(13);
+
+            assertThat(cache.remove("a")).isTrue();
+            assertThat(cache.get("a")).isNull();
+            assertThat(cache.size()).isEqualTo(4);
+        }
+    }
+
+    @Test public void reindexingKeepsEntriesWithValuesInLog() throws Exception {
+        for (int mode = 0; mode < 3; mode++) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            DiskLruCache.Options options = new DiskLruCache.Options()
+                    .setValueLog(16)
+                    .setOffHeapIndex(mode == 1)
+                    .setLazyIndexing(mode == 2);
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            set("k", "short", "longer than sixteen bytes");
+            set("m", "short", "also longer than sixteen");
+            cache.close();
+
+            // Changed by hand: the value in its own file of "m" is gone.
+            getCleanFile("m", 1).delete();
+            long later = System.currentTimeMillis() + 10000;
+            getCleanFile("k", 1).getParentFile().setLastModified(later);
+            getCleanFile("m", 1).getParentFile().setLastModified(later);
+
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            assertSnapshot("k", "short", "longer than sixteen bytes");
+            assertThat(getCleanFile("k", 1)).exists();
+            assertAbsent("m");
+            assertThat(cache.size()).isEqualTo(30);
+            // Removing "m" may start a value log compaction; let it finish
+            // before the directory is deleted.
+            awaitExecutor();
+        }
+    }
+
+    @Test public void valueLogCompactionDeletesMostlyDeadFiles() throws Exception {
+        cache.close();
+        FileUtils.deleteDirectory(cacheDir);
+        DiskLruCache.Options options = new DiskLruCache.Options()
+                .setValueLog(100)
+                .setValueLogFileSize(256);
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+        for (int round = 0; round < 20; round++) {
+            for (int key = 0; key < 5; key++) {
+                set("k" + key, "r" + (round % 10), "v");
+            }
+        }
+        awaitExecutor();
+
+        // Each of the ten live values takes a 43 byte record. Files that are
+        // no longer appended to are at least half live.
+        long logBytes = 0;
+        for (File file : cacheDir.listFiles()) {
+            if (ValueLog.numberOf(file.getName()) != -1) {
+                logBytes += file.length() - ValueLog.HEADER_LENGTH;
+            }
+        }
+        assertThat(logBytes).isLessThanOrEqualTo(2 * 10 * 43 + 256);
+        for (int key = 0; key < 5; key++) {
+            assertSnapshot("k" + key, "r9", "v");
+        }
+
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+        for (int key = 0; key < 5; key++) {
+            assertSnapshot("k" + key, "r9", "v");
+        }
+    }
+
+    @Test public void byteBuffersMapLargeValues() throws Exception {
+        DiskLruCache.Options[] layouts = {
+                new DiskLruCache.Options().setMemoryMapThreshold(4),
+                new DiskLruCache.Options().setMemoryMapThreshold(4).setPackedValues(true),
+                new DiskLruCache.Options().setMemoryMapThreshold(4).setValueLog(8)
+        };
+        for (DiskLruCache.Options options : layouts) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            set("a", "abc", "defghi");
+
+            DiskLruCache.Snapshot snapshot = cache.get("a");
+            ByteBuffer small = snapshot.getByteBuffer(0);
+            ByteBuffer large = snapshot.getByteBuffer(1);
+            assertThat(small.isReadOnly()).isTrue();
+            assertThat(small.isDirect()).isFalse();
+            assertThat(large).isInstanceOf(MappedByteBuffer.class);
+            assertThat(large.isReadOnly()).isTrue();
+            // The streams are left where they were.
+            assertThat(snapshot.getString(0)).isEqualTo("abc");
+            snapshot.close();
+            assertThat(Util.UTF_8.decode(small).toString()).isEqualTo("abc");
+            assertThat(Util.UTF_8.decode(large).toString()).isEqualTo("defghi");
+
+            snapshot = cache.get("a");
+            snapshot.getInputStream(1).close();
+            try {
+                snapshot.getByteBuffer(1);
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            snapshot.close();
+        }
+    }
+
+    @Test public void valuesTransferThroughChannels() throws Exception {
+        DiskLruCache.Options[] layouts = {
+                new DiskLruCache.Options(),
+                new DiskLruCache.Options().setPackedValues(true),
+                new DiskLruCache.Options().setValueLog(4)
+        };
+        for (DiskLruCache.Options options : layouts) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+
+            DiskLruCache.Editor editor = cache.edit("a");
+            assertThat(editor.transferFrom(0, Channels.newChannel(
+                    new ByteArrayInputStream("abcdef".getBytes(Util.UTF_8))), 3)).isEqualTo(3);
+            assertThat(editor.transferFrom(1, Channels.newChannel(
+                    new ByteArrayInputStream("ghijklmn".getBytes(Util.UTF_8))))).isEqualTo(8);
+            editor.commit();
+            assertSnapshot("a", "abc", "ghijklmn");
+
+            DiskLruCache.Snapshot snapshot = cache.get("a");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            WritableByteChannel target = Channels.newChannel(out);
+            assertThat(snapshot.transferTo(1, target)).isEqualTo(8);
+            assertThat(snapshot.transferTo(1, 2, 3, target)).isEqualTo(3);
+            assertThat(snapshot.transferTo(1, 6, 10, target)).isEqualTo(2);
+            assertThat(snapshot.transferTo(1, 8, 10, target)).isEqualTo(0);
+            assertThat(snapshot.transferTo(0, target)).isEqualTo(3);
+            assertThat(out.toString("UTF-8")).isEqualTo("ghijklmnijkmnabc");
+            // The streams are left where they were.
+            assertThat(snapshot.getString(1)).isEqualTo("ghijklmn");
+            try {
+                snapshot.transferTo(1, target);
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            snapshot.close();
+
+            // Transfer one entry's file into another, as a proxy would.
+            File source = tempDir.newFile();
+            FileUtils.writeStringToFile(source, "opqrstuvwxyz", "UTF-8");
+            FileInputStream in = new FileInputStream(source);
+            try {
+                editor = cache.edit("a");
+                assertThat(editor.transferFrom(0, in.getChannel())).isEqualTo(12);
+                editor.commit();
+            } finally {
+                in.close();
+            }
+            assertSnapshot("a", "opqrstuvwxyz", "ghijklmn");
+        }
+    }
+
+    @Test public void rangeReads() throws Exception {
+        DiskLruCache.Options[] layouts = {
+                new DiskLruCache.Options(),
+                new DiskLruCache.Options().setPackedValues(true),
+                new DiskLruCache.Options().setValueLog(16)
+        };
+        for (DiskLruCache.Options options : layouts) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            set("a", "abc", "0123456789");
+
+            DiskLruCache.Snapshot snapshot = cache.get("a");
+            assertThat(readRange(snapshot, 1, 3, 4)).isEqualTo("3456");
+            assertThat(readRange(snapshot, 1, 8, 10)).isEqualTo("89");
+            assertThat(readRange(snapshot, 1, 12, 1)).isEqualTo("");
+
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            assertThat(snapshot.read(1, 5, buffer)).isEqualTo(4);
+            assertThat(new String(buffer.array(), Util.UTF_8)).isEqualTo("5678");
+            buffer.clear();
+            assertThat(snapshot.read(1, 8, buffer)).isEqualTo(2);
+            assertThat(buffer.position()).isEqualTo(2);
+            buffer.clear();
+            assertThat(snapshot.read(1, 10, buffer)).isEqualTo(-1);
+
+            // Ranges don't move the stream of the value, nor close it.
+            InputStream range = snapshot.getInputStream(0, 1, 1);
+            range.close();
+            assertThat(snapshot.getString(0)).isEqualTo("abc");
+            range = snapshot.getInputStream(1, 0, 10);
+            snapshot.close();
+            try {
+                range.read();
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test public void lazySnapshotsOpenValuesOnFirstRead() throws Exception {
+        for (boolean offHeapIndex : new boolean[] {false, true}) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            DiskLruCache.Options options = new DiskLruCache.Options()
+                    .setLazySnapshots(true)
+                    .setOffHeapIndex(offHeapIndex);
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            set("a", "a0", "a1");
+
+            // Only the value that is read is opened.
+            getCleanFile("a", 0).delete();
+            DiskLruCache.Snapshot snapshot = cache.get("a");
+            assertThat(snapshot.getString(1)).isEqualTo("a1");
+            assertThat(snapshot.getInputStream(0)).isNull();
+            snapshot.close();
+
+            // Values committed after the snapshot was created aren't mixed in.
+            set("a", "b0", "b1");
+            snapshot = cache.get("a");
+            InputStream in = snapshot.getInputStream(0);
+            set("a", "c0", "c1");
+            assertThat(Util.readFully(new InputStreamReader(in, Util.UTF_8))).isEqualTo("b0");
+            assertThat(snapshot.getInputStream(1)).isNull();
+            try {
+                snapshot.getString(1);
+                fail();
+            } catch (IOException expected) {
+            }
+            snapshot.close();
+            assertSnapshot("a", "c0", "c1");
+
+            snapshot = cache.get("a");
+            cache.remove("a");
+            assertThat(snapshot.getInputStream(0)).isNull();
+            snapshot.close();
+        }
+    }
+
+    @Test public void lazySnapshotsOfPackedAndLoggedValues() throws Exception {
+        DiskLruCache.Options[] layouts = {
+                new DiskLruCache.Options().setLazySnapshots(true).setPackedValues(true),
+                new DiskLruCache.Options().setLazySnapshots(true).setValueLog(16)
+        };
+        for (DiskLruCache.Options options : layouts) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            set("a", "a0", "a1");
+            assertSnapshot("a", "a0", "a1");
+
+            DiskLruCache.Snapshot snapshot = cache.get("a");
+            assertThat(snapshot.getString(0)).isEqualTo("a0");
+            set("a", "b0", "b1");
+            // The packed file was opened with the first value; logged values
+            // stay where they were written.
+            assertThat(snapshot.getString(1)).isEqualTo("a1");
+            snapshot.close();
+            assertSnapshot("a", "b0", "b1");
+        }
+    }
+
+    @Test public void statReadsMetadataWithoutOpeningFiles() throws Exception {
+        for (boolean offHeapIndex : new boolean[] {false, true}) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            cache = DiskLruCache.open(cacheDir, 2, 10,
+                    new DiskLruCache.Options().setOffHeapIndex(offHeapIndex));
+            long before = System.currentTimeMillis();
+            set("a", "a", "aa");
+            set("b", "b", "bb");
+
+            DiskLruCache.Stat stat = cache.stat("a");
+            assertThat(stat.getLength(0)).isEqualTo(1);
+            assertThat(stat.getLength(1)).isEqualTo(2);
+            assertThat(stat.getLastAccessMillis()).isGreaterThanOrEqualTo(before);
+            assertThat(cache.contains("a")).isTrue();
+            assertThat(cache.contains("c")).isFalse();
+            assertThat(cache.stat("c")).isNull();
+
+            // The files aren't looked at.
+            getCleanFile("a", 0).delete();
+            assertThat(cache.contains("a")).isTrue();
+
+            set("a", "a", "aaa");
+            assertThat(cache.stat("a").getSequenceNumber())
+                    .isGreaterThan(stat.getSequenceNumber());
+            assertThat(cache.stat("a").getLength(1)).isEqualTo(3);
+
+            // Touching 'B' makes 'A' the least recently used.
+            cache.stat("b", true);
+            set("c", "c", "ccc");
+            cache.flush();
+            assertAbsent("a");
+            assertValue("b", "b", "bb");
+            assertValue("c", "c", "ccc");
+        }
+    }
+
+    @Test public void memoryCacheServesEntriesWithoutFiles() throws Exception {
+        for (int mode = 0; mode < 3; mode++) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            DiskLruCache.Options options = new DiskLruCache.Options()
+                    .setMemoryCache(12, 6)
+                    .setOffHeapIndex(mode == 1)
+                    .setMemoryCacheOffHeap(mode == 2);
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+
+            // Committed entries are cached, unless they are too large.
+            set("a", "a0", "a1");
+            set("big", "big0", "big1");
+            assertThat(cache.memoryCacheSize()).isEqualTo(4);
+            getCleanFile("a", 0).delete();
+            getCleanFile("a", 1).delete();
+            assertSnapshot("a", "a0", "a1");
+
+            DiskLruCache.Snapshot snapshot = cache.get("a");
+            assertThat(Util.UTF_8.decode(snapshot.getByteBuffer(1)).toString()).isEqualTo("a1");
+            assertThat(readRange(snapshot, 0, 1, 5)).isEqualTo("0");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertThat(snapshot.transferTo(0, Channels.newChannel(out))).isEqualTo(2);
+            assertThat(out.toString("UTF-8")).isEqualTo("a0");
+            snapshot.close();
+
+            // Committing again replaces the cached values.
+            set("a", "b0", "b1");
+            assertSnapshot("a", "b0", "b1");
+            assertThat(cache.memoryCacheSize()).isEqualTo(4);
+            cache.remove("a");
+            assertThat(cache.memoryCacheSize()).isEqualTo(0);
+            assertAbsent("a");
+
+            // Read entries are cached, and the least recently used evicted.
+            set("c", "c0", "c1");
+            set("d", "d0", "d1");
+            set("e", "e0", "e1");
+            assertThat(cache.memoryCacheSize()).isEqualTo(12);
+            cache.close();
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+            assertThat(cache.memoryCacheSize()).isEqualTo(0);
+            assertSnapshot("c", "c0", "c1");
+            assertSnapshot("d", "d0", "d1");
+            assertThat(cache.memoryCacheSize()).isEqualTo(8);
+            getCleanFile("c", 0).delete();
+            assertSnapshot("c", "c0", "c1");
+            assertSnapshot("e", "e0", "e1");
+            assertThat(cache.memoryCacheSize()).isEqualTo(12);
+            set("g", "g0", "g1");
+            assertThat(cache.memoryCacheSize()).isEqualTo(12);
+            assertSnapshot("g", "g0", "g1");
+        }
+    }
+
+    @Test public void getOrLoadCoalescesConcurrentMisses() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DiskLruCache.Loader loader = new DiskLruCache.Loader() {
+            public void load(String key, DiskLruCache.Editor editor) throws IOException {
+                loads.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                editor.set(0, key + "0");
+                editor.set(1, key + "1");
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results =
+                    new ArrayList<Future<String>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        DiskLruCache.Snapshot snapshot = cache.getOrLoad("a", loader);
+                        try {
+                            return snapshot.getString(0) + snapshot.getString(1);
+                        } finally {
+                            snapshot.close();
+                        }
+                    }
+                }));
+            }
+            loading.await();
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<String> result : results) {
+                assertThat(result.get()).isEqualTo("a0a1");
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(loads.get()).isEqualTo(1);
+
+        // Hits don't run the loader.
+        DiskLruCache.Snapshot snapshot = cache.getOrLoad("a", loader);
+        assertThat(snapshot.getString(0)).isEqualTo("a0");
+        snapshot.close();
+        assertThat(loads.get()).isEqualTo(1);
+    }
+
+    @Test public void getOrLoadFailuresAbortTheEdit() throws Exception {
+        DiskLruCache.Loader failing = new DiskLruCache.Loader() {
+            public void load(String key, DiskLruCache.Editor editor) throws IOException {
+                editor.set(0, "partial");
+                throw new IOException("origin unavailable");
+            }
+        };
+        try {
+            cache.getOrLoad("a", failing);
+            fail();
+        } catch (IOException expected) {
+            assertThat(expected.getMessage()).isEqualTo("origin unavailable");
+        }
+        assertAbsent("a");
+
+        DiskLruCache.Snapshot snapshot = cache.getOrLoad("a", new DiskLruCache.Loader() {
+            public void load(String key, DiskLruCache.Editor editor) throws IOException {
+                editor.set(0, "a0");
+                editor.set(1, "a1");
+            }
+        });
+        assertThat(snapshot.getString(1)).isEqualTo("a1");
+        snapshot.close();
+
+        // An edit from edit() can't be waited for.
+        DiskLruCache.Editor editor = cache.edit("b");
+        assertThat(cache.getOrLoad("b", failing)).isNull();
+        editor.abort();
+    }
+
+    @Test public void getOrLoadStreamFollowsValuesAsTheyAreWritten() throws Exception {
+        for (int mode = 0; mode < 3; mode++) {
+            cache.close();
+            FileUtils.deleteDirectory(cacheDir);
+            DiskLruCache.Options options = new DiskLruCache.Options();
+            if (mode == 1) {
+                options.setPackedValues(true);
+            } else if (mode == 2) {
+                options.setValueLog(1024);
+            }
+            cache = DiskLruCache.open(cacheDir, 2, Integer.MAX_VALUE, options);
+
+            final CountDownLatch written = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final DiskLruCache.Loader loader = new DiskLruCache.Loader() {
+                public void load(String key, DiskLruCache.Editor editor) throws IOException {
+                    editor.set(0, "a0");
+                    OutputStream out = editor.newOutputStream(1);
+                    out.write("abc".getBytes("UTF-8"));
+                    written.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                    out.write("def".getBytes("UTF-8"));
+                    out.close();
+                }
+            };
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<InputStream> leader =
+                        executor.submit(new Callable<InputStream>() {
+                            public InputStream call() throws Exception {
+                                return cache.getOrLoadStream("a", 1, loader);
+                            }
+                        });
+                written.await();
+                InputStream in = cache.getOrLoadStream("a", 1, loader);
+                byte[] buffer = new byte[3];
+                assertThat(in.read(buffer)).isEqualTo(3);
+                assertThat(new String(buffer, "UTF-8")).isEqualTo("abc");
+                release.countDown();
+                assertThat(Util.readFully(new InputStreamReader(in, Util.UTF_8)))
+                        .isEqualTo("def");
+
+                InputStream committed = leader.get();
+                assertThat(Util.readFully(new InputStreamReader(committed, Util.UTF_8)))
+                        .isEqualTo("abcdef");
+            } finally {
+                executor.shutdown();
+            }
+            assertSnapshot("a", "a0", "abcdef");
+        }
+    }
+
+    @Test public void getOrLoadStreamThrowsWhenTheLoadFails() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DiskLruCache.Loader loader = new DiskLruCache.Loader() {
+            public void load(String key, DiskLruCache.Editor editor) throws IOException {
+                OutputStream out = editor.newOutputStream(0);
+                out.write('a');
+                written.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                throw new IOException("origin unavailable");
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<InputStream> leader =
+                    executor.submit(new Callable<InputStream>() {
+                        public InputStream call() throws Exception {
+                            return cache.getOrLoadStream("a", 0, loader);
+                        }
+                    });
+            written.await();
+            InputStream in = cache.getOrLoadStream("a", 0, loader);
+            assertThat(in.read()).isEqualTo('a');
+            release.countDown();
+            try {
+                in.read();
+                fail();
+            } catch (IOException expected) {
+                assertThat(expected.getCause()).hasMessage("origin unavailable");
+            }
+            in.close();
+            try {
+                leader.get();
+                fail();
+            } catch (ExecutionException expected) {
+                assertThat(expected.getCause()).hasMessage("origin unavailable");
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertAbsent("a");
+    }
+
+    private static String readRange(DiskLruCache.Snapshot snapshot, int index, long offset,
+            long length) throws IOException {
+        return Util.readFully(new InputStreamReader(
+                snapshot.getInputStream(index, offset, length), Util.UTF_8));
+    }
+
+    private void deleteIndexAndJournals() {
+        new File(cacheDir, DiskLruCache.INDEX_FILE).delete();
+        for (File file : cacheDir.listFiles()) {
+            if (file.getName().startsWith(Journal.JOURNAL_FILE_PREFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    /** Sets the modification and access times of the values of {@code key}. */
+    private void setLastUsed(String key, long millis) throws Exception {
+        FileTime time = FileTime.fromMillis(millis);
+        for (int i = 0; i < 2; i++) {
+            Files.getFileAttributeView(getCleanFile(key, i).toPath(), BasicFileAttributeView.class)
+                    .setTimes(time, time, null);
+        }
+    }
+
+    /**
+     * Makes the subdirectories look older than the journal, as though their
+     * changes were written long before the journal was last flushed.
+     */
+    private void backdateSubdirectories() {
+        for (File file : cacheDir.listFiles()) {
+            if (file.isDirectory()) {
+                file.setLastModified(1000L);
+            }
+        }
+    }
+
+    /** Waits for the tasks already submitted to the cache's executor. */
+    private void awaitExecutor() throws Exception {
+        cache.executorService.submit(new Callable<Void>() {
+            public Void call() {
+                return null;
+            }
+        }).get();
+    }
+
     private void set(String key, String value0, String value1) throws Exception {
         DiskLruCache.Editor editor = cache.edit(key);
         editor.set(0, value0);
@@ -672,6 +2145,16 @@ public final class DiskLruCacheTest {
         assertThat(getDirtyFile(key, 1)).doesNotExist();
     }
 
+    private void assertSnapshot(String key, String value0, String value1)
+            throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertThat(snapshot.getString(0)).isEqualTo(value0);
+        assertThat(snapshot.getLength(0)).isEqualTo(value0.length());
+        assertThat(snapshot.getString(1)).isEqualTo(value1);
+        assertThat(snapshot.getLength(1)).isEqualTo(value1.length());
+        snapshot.close();
+    }
+
     private void assertValue(String key, String value0, String value1) throws Exception {
         DiskLruCache.Snapshot snapshot = cache.get(key);
         assertThat(snapshot.getString(0)).isEqualTo(value0);
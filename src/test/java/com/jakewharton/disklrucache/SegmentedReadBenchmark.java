@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the read throughput of a cache with one segment against a
+ * segmented one as the number of reading threads grows. Run it once per
+ * thread count, for example:
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * for t in 1 2 4 8 16 32 64; do
+ *   java -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *       org.openjdk.jmh.Main SegmentedReadBenchmark -t $t
+ * done
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SegmentedReadBenchmark {
+    @Param({"1", "64"})
+    public int segmentCount;
+
+    @Param({"10000"})
+    public int entryCount;
+
+    private File directory;
+    private DiskLruCache cache;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void populate() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"),
+                "SegmentedReadBenchmark-" + System.nanoTime());
+        cache = DiskLruCache.open(directory, 1, Long.MAX_VALUE,
+                new DiskLruCache.Options().setSegmentCount(segmentCount));
+        keys = new String[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            keys[i] = "key" + i;
+            DiskLruCache.Editor editor = cache.edit(keys[i]);
+            editor.set(0, "value" + i);
+            editor.commit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws Exception {
+        cache.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public long get() throws Exception {
+        String key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        try {
+            return snapshot.getLength(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+}
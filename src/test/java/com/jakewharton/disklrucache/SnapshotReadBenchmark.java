@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading a whole value through its stream against reading it
+ * through {@link DiskLruCache.Snapshot#getByteBuffer}, which maps values from
+ * 64 KiB up. Run it with:
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *     org.openjdk.jmh.Main SnapshotReadBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SnapshotReadBenchmark {
+    @Param({"4096", "1048576"})
+    public int valueSize;
+
+    private File directory;
+    private DiskLruCache cache;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void populate() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"),
+                "SnapshotReadBenchmark-" + System.nanoTime());
+        cache = DiskLruCache.open(directory, 1, Long.MAX_VALUE);
+        DiskLruCache.Editor editor = cache.edit("key");
+        editor.newOutputStream(0).write(new byte[valueSize]);
+        editor.commit();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws Exception {
+        cache.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public long stream() throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get("key");
+        try {
+            InputStream in = snapshot.getInputStream(0);
+            long sum = 0;
+            for (int count; (count = in.read(buffer)) != -1; ) {
+                sum += buffer[count - 1];
+            }
+            return sum;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Benchmark
+    public long byteBuffer() throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get("key");
+        try {
+            ByteBuffer value = snapshot.getByteBuffer(0);
+            // Touch every page, as writing the buffer to a socket would.
+            long sum = 0;
+            for (int i = 0; i < value.limit(); i += 4096) {
+                sum += value.get(i);
+            }
+            return sum;
+        } finally {
+            snapshot.close();
+        }
+    }
+}
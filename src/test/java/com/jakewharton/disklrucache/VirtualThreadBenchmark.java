@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long a burst of concurrent lookups takes when run on a pool of
+ * platform threads and on virtual threads, for a mix of hits and misses. The
+ * virtual thread runs need Java 21 or later:
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *     org.openjdk.jmh.Main VirtualThreadBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VirtualThreadBenchmark {
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    /** Percentage of lookups for keys that are in the cache. */
+    @Param({"50", "90"})
+    public int hitPercent;
+
+    @Param({"10000"})
+    public int concurrentLookups;
+
+    @Param({"64"})
+    public int platformThreads;
+
+    private static final int ENTRY_COUNT = 10000;
+
+    private File directory;
+    private DiskLruCache cache;
+    private ExecutorService executor;
+    private AsyncDiskLruCache async;
+
+    @Setup(Level.Trial)
+    public void populate() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"),
+                "VirtualThreadBenchmark-" + System.nanoTime());
+        cache = DiskLruCache.open(directory, 1, Long.MAX_VALUE,
+                new DiskLruCache.Options().setSegmentCount(64));
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            DiskLruCache.Editor editor = cache.edit("key" + i);
+            editor.set(0, "value" + i);
+            editor.commit();
+        }
+        executor = "virtual".equals(threads)
+                ? AsyncDiskLruCache.newVirtualThreadExecutor()
+                : Executors.newFixedThreadPool(platformThreads);
+        async = new AsyncDiskLruCache(cache, executor, concurrentLookups);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws Exception {
+        executor.shutdown();
+        cache.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public int lookups() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<DiskLruCache.Snapshot>[] futures =
+                new CompletableFuture[concurrentLookups];
+        for (int i = 0; i < futures.length; i++) {
+            String key = random.nextInt(100) < hitPercent
+                    ? "key" + random.nextInt(ENTRY_COUNT)
+                    : "missing" + random.nextInt();
+            futures[i] = async.getAsync(key);
+        }
+        int hits = 0;
+        for (CompletableFuture<DiskLruCache.Snapshot> future : futures) {
+            DiskLruCache.Snapshot snapshot = future.get();
+            if (snapshot != null) {
+                snapshot.close();
+                hits++;
+            }
+        }
+        return hits;
+    }
+}